@@ -0,0 +1,564 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs kDMI on many data sets in one JVM, without prompting. The jobs come
+ * either from a manifest file or from the data files of a directory, and are
+ * run on a fixed pool of worker threads. Every job has its own kDMI instance,
+ * so nothing but the input files is shared between jobs; two jobs writing the
+ * same output file are rejected before any job starts. A failing job is
+ * reported and does not stop the others.
+ *
+ * A manifest has one job per line: the attribute file, the data file and the
+ * output file, separated by commas or tabs. Blank lines and lines starting with
+ * # are skipped, and relative names are resolved against the manifest's
+ * directory.
+ *
+ * In directory mode every file matching the glob (default *.txt) is a data
+ * file. Its attribute file is name_attr.ext next to it, or the file given by
+ * -attr, and it is imputed into name_kDMI.ext in the output directory.
+ * Files named *_attr.* or *_kDMI.* are not taken as data files.
+ *
+ * When all jobs are done a summary of each job (status, records, seconds,
+ * records per second and the error of a failed job) is printed, and written to
+ * the -summary file if one is given. The exit status is 1 if a job failed.
+ *
+ * <pre>
+ * java kdmi.BatchRunner -manifest jobs.txt [options]
+ * java kdmi.BatchRunner -dir data [-glob *.csv] [-attr attr.txt] [-out outdir] [options]
+ *
+ * options: -workers n   no. of jobs run at the same time (default: no. of processors)
+ *          -threads n   no. of threads of each job (default 1)
+ *          -snapshot    impute the records of a job in snapshot mode
+ *          -emcache n   size of the EM fit cache of each job (default 0, no cache)
+ *          -emtol t     relative tolerance of EM convergence (default 1e-8)
+ *          -emiter n    max. no. of EM iterations (default 32767)
+ *          -emseed n    seed of the EM residuals, for repeatable output
+ *          -emmean      EM imputes by the conditional mean only, no residuals
+ *          -fastk       compare the k of a record by a regression instead of EM
+ *          -maxk n      largest k tried for a record (default 0, no limit)
+ *          -approx n    search neighbours approximately, measuring n records
+ *                       per search (default 0, exact); needs -maxk
+ *          -summary f   also write the summary to file f
+ * </pre>
+ *
+ * @author grahman
+ */
+public class BatchRunner
+{
+    /** class name, used in logging errors */
+    static String className = kdmi.BatchRunner.class.getName();
+
+    private int noOfWorkers=Runtime.getRuntime().availableProcessors();
+    private int threadsPerJob=1;
+    private int snapshotImpute=0;
+    private int emCacheSize=0;
+    private EMConvergence emConvergence=new EMConvergence();
+    private Long emSeed;  //null->no seed
+    private int emConditionalMean=0;
+    private int fastBestK=0;
+    private int maxNeighbours=0;
+    private int approxRows=0;
+
+    /**
+     * A data set to impute and the result of imputing it.
+     */
+    public static class Job
+    {
+        private int id;
+        private String attrFile;
+        private String dataFile;
+        private String outputFile;
+        private String status="NOT RUN";
+        private String error="";
+        private int records;
+        private double seconds;
+
+        /**
+         * @param id the no. of the job, from 1
+         * @param attrFile the attribute file
+         * @param dataFile the data file having missing values
+         * @param outputFile the file the imputed data set is written to
+         */
+        public Job(int id, String attrFile, String dataFile, String outputFile)
+        {
+            this.id=id;
+            this.attrFile=attrFile;
+            this.dataFile=dataFile;
+            this.outputFile=outputFile;
+        }
+
+        /** returns the no. of the job */
+        public int getId()
+        {
+            return id;
+        }
+
+        /** returns the data file */
+        public String getDataFile()
+        {
+            return dataFile;
+        }
+
+        /** returns the output file */
+        public String getOutputFile()
+        {
+            return outputFile;
+        }
+
+        /** returns OK, FAILED or NOT RUN */
+        public String getStatus()
+        {
+            return status;
+        }
+
+        /** returns the error of a failed job, "" otherwise */
+        public String getError()
+        {
+            return error;
+        }
+
+        /** returns the no. of records of the data set, 0 if it could not be read */
+        public int getRecords()
+        {
+            return records;
+        }
+
+        /** returns the seconds taken by the job */
+        public double getSeconds()
+        {
+            return seconds;
+        }
+
+        private void fail(String msg)
+        {
+            status="FAILED";
+            error=msg;
+        }
+    }
+
+    /**
+     * sets the no. of jobs run at the same time
+     *
+     * @param workers no. of worker threads
+     */
+    public void setNoOfWorkers(int workers)
+    {
+        noOfWorkers=Math.max(1, workers);
+    }
+
+    /**
+     * sets the no. of threads each job uses, see kDMI.setNoOfThreads
+     *
+     * @param threads no. of threads of a job
+     */
+    public void setThreadsPerJob(int threads)
+    {
+        threadsPerJob=Math.max(1, threads);
+    }
+
+    /**
+     * sets whether the jobs impute in snapshot mode, see kDMI.setSnapshotImpute
+     *
+     * @param snapshot 1->snapshot mode, 0->in place
+     */
+    public void setSnapshotImpute(int snapshot)
+    {
+        snapshotImpute=snapshot;
+    }
+
+    /**
+     * sets the EM fit cache size of each job, see kDMI.setEMCacheSize
+     *
+     * @param size max. no. of fits kept, 0->no cache
+     */
+    public void setEMCacheSize(int size)
+    {
+        emCacheSize=Math.max(0, size);
+    }
+
+    /**
+     * sets when the EM runs of each job stop, see kDMI.setEMConvergence
+     *
+     * @param convergence the convergence test and iteration budget
+     */
+    public void setEMConvergence(EMConvergence convergence)
+    {
+        emConvergence=convergence;
+    }
+
+    /**
+     * sets the seed of the EM residuals of each job, see kDMI.setEMSeed
+     *
+     * @param seed the seed
+     */
+    public void setEMSeed(long seed)
+    {
+        emSeed=seed;
+    }
+
+    /**
+     * sets whether the EM of each job imputes by the conditional mean only,
+     * see kDMI.setEMConditionalMean
+     *
+     * @param meanOnly 1->conditional mean only, 0->with residuals
+     */
+    public void setEMConditionalMean(int meanOnly)
+    {
+        emConditionalMean=meanOnly;
+    }
+
+    /**
+     * sets how each job compares the k of a record, see kDMI.setFastBestK
+     *
+     * @param fast 1->by regression, 0->by EM
+     */
+    public void setFastBestK(int fast)
+    {
+        fastBestK=fast;
+    }
+
+    /**
+     * sets the largest k each job tries for a record, see kDMI.setMaxNeighbours
+     *
+     * @param max largest k tried, 0->no limit
+     */
+    public void setMaxNeighbours(int max)
+    {
+        maxNeighbours=max;
+    }
+
+    /**
+     * sets how many records each job measures per approximate neighbour
+     * search, see kDMI.setApproximateNeighbours
+     *
+     * @param maxRows records measured per search, 0->exact search
+     */
+    public void setApproximateNeighbours(int maxRows)
+    {
+        approxRows=maxRows;
+    }
+
+    /**
+     * reads the jobs of a manifest
+     *
+     * @param manifest the manifest file
+     * @return the jobs in the order of the manifest
+     * @throws IOException if the manifest cannot be read or a line has no three file names
+     */
+    public static List<Job> readManifest(File manifest) throws IOException
+    {
+        List<Job> jobs=new ArrayList<Job>();
+        File dir=manifest.getAbsoluteFile().getParentFile();
+        BufferedReader in=new BufferedReader(new FileReader(manifest));
+        try
+        {
+            String line;
+            int lineNo=0;
+            while((line=in.readLine())!=null)
+            {
+                lineNo++;
+                line=line.trim();
+                if(line.length()==0 || line.startsWith("#")) continue;
+                String []names=line.split("\\s*[,\t]\\s*");
+                if(names.length!=3)
+                {
+                    throw new IOException(manifest+":"+lineNo
+                            +": expected attribute, data and output file, found: "+line);
+                }
+                jobs.add(new Job(jobs.size()+1, resolve(dir, names[0]),
+                        resolve(dir, names[1]), resolve(dir, names[2])));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return jobs;
+    }
+
+    private static String resolve(File dir, String name)
+    {
+        File f=new File(name);
+        if(!f.isAbsolute()) f=new File(dir, name);
+        return f.getPath();
+    }
+
+    /**
+     * makes a job of each data file of a directory
+     *
+     * @param dir the directory of the data files
+     * @param glob pattern of the data file names, such as *.txt
+     * @param attrFile attribute file of data files with no name_attr.ext file, may be null
+     * @param outDir directory of the output files
+     * @return the jobs in the order of the data file names
+     * @throws IOException if the directory cannot be read
+     */
+    public static List<Job> listDirectory(File dir, String glob, String attrFile, File outDir)
+            throws IOException
+    {
+        List<Path> files=new ArrayList<Path>();
+        DirectoryStream<Path> stream=Files.newDirectoryStream(dir.toPath(), glob);
+        try
+        {
+            for(Path p:stream)
+            {
+                String base=baseName(p.getFileName().toString());
+                if(Files.isRegularFile(p) && !base.endsWith("_attr") && !base.endsWith("_kDMI"))
+                    files.add(p);
+            }
+        }
+        finally
+        {
+            stream.close();
+        }
+        Collections.sort(files);
+        List<Job> jobs=new ArrayList<Job>();
+        for(Path p:files)
+        {
+            String name=p.getFileName().toString();
+            String ext=name.substring(baseName(name).length());
+            String base=baseName(name);
+            File attr=new File(dir, base+"_attr"+ext);
+            String attrName=attr.isFile()?attr.getPath():attrFile;
+            jobs.add(new Job(jobs.size()+1, attrName, p.toString(),
+                    new File(outDir, base+"_kDMI"+ext).getPath()));
+        }
+        return jobs;
+    }
+
+    private static String baseName(String name)
+    {
+        int dot=name.lastIndexOf('.');
+        return dot>0?name.substring(0, dot):name;
+    }
+
+    /**
+     * runs the jobs on the worker pool and waits for all of them. Jobs with a
+     * missing input file or an output file used by an earlier job fail
+     * without being run.
+     *
+     * @param jobs the jobs
+     */
+    public void runJobs(List<Job> jobs)
+    {
+        Map<String,Job> outputs=new HashMap<String,Job>();
+        List<Job> runnable=new ArrayList<Job>();
+        for(Job job:jobs)
+        {
+            String out=new File(job.outputFile).getAbsoluteFile().toPath().normalize().toString();
+            Job other=outputs.get(out);
+            if(job.attrFile==null || !new File(job.attrFile).isFile())
+                job.fail("attribute file not found: "+job.attrFile);
+            else if(!new File(job.dataFile).isFile())
+                job.fail("data file not found: "+job.dataFile);
+            else if(other!=null)
+                job.fail("output file is also written by job "+other.id);
+            else
+            {
+                outputs.put(out, job);
+                runnable.add(job);
+            }
+        }
+        ExecutorService pool=Executors.newFixedThreadPool(Math.min(noOfWorkers, Math.max(1, runnable.size())));
+        try
+        {
+            List<Future<?>> done=new ArrayList<Future<?>>();
+            for(final Job job:runnable)
+            {
+                done.add(pool.submit(new Runnable() {
+                    public void run()
+                    {
+                        runJob(job);
+                    }
+                }));
+            }
+            for(Future<?> f:done)
+            {
+                f.get();
+            }
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        catch(ExecutionException ex)
+        {
+            throw new RuntimeException(ex.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /*
+     * runs one job with its own kDMI instance, any error only fails the job
+     */
+    private void runJob(Job job)
+    {
+        long start=System.nanoTime();
+        kDMI kdmi=new kDMI();
+        kdmi.setNoOfThreads(threadsPerJob);
+        kdmi.setSnapshotImpute(snapshotImpute);
+        kdmi.setEMCacheSize(emCacheSize);
+        kdmi.setEMConvergence(emConvergence);
+        kdmi.setEMConditionalMean(emConditionalMean);
+        kdmi.setFastBestK(fastBestK);
+        kdmi.setMaxNeighbours(maxNeighbours);
+        kdmi.setApproximateNeighbours(approxRows);
+        if(emSeed!=null) kdmi.setEMSeed(emSeed);
+        try
+        {
+            kdmi.runkDMI(job.attrFile, job.dataFile, job.outputFile);
+            job.records=kdmi.getNoOfRecords();
+            if(kdmi.getRowsWritten()!=job.records)
+                job.fail("output file could not be written: "+job.outputFile);
+            else
+                job.status="OK";
+        }
+        catch(Throwable ex)
+        {
+            job.records=kdmi.getNoOfRecords();
+            job.fail(ex.toString());
+            Logger.getLogger(className).log(Level.WARNING, "job "+job.id+" ("+job.dataFile+") failed", ex);
+        }
+        job.seconds=(System.nanoTime()-start)/1e9;
+    }
+
+    /**
+     * returns the summary of the jobs, one tab separated line per job and a
+     * line with the totals
+     *
+     * @param jobs the jobs
+     * @param wallSeconds the seconds taken by all jobs together
+     * @return the summary
+     */
+    public static String getSummary(List<Job> jobs, double wallSeconds)
+    {
+        StringBuilder sb=new StringBuilder();
+        sb.append("job\tstatus\trecords\tseconds\trecords/s\tdata file\toutput file\terror\n");
+        long records=0;
+        int failed=0;
+        for(Job job:jobs)
+        {
+            sb.append(job.id).append('\t').append(job.status).append('\t')
+              .append(job.records).append('\t')
+              .append(String.format("%.3f", job.seconds)).append('\t')
+              .append(String.format("%.0f", job.records/Math.max(job.seconds, 1e-9))).append('\t')
+              .append(job.dataFile).append('\t').append(job.outputFile).append('\t')
+              .append(job.error).append('\n');
+            if(job.status.equals("OK")) records+=job.records;
+            else failed++;
+        }
+        sb.append("total: ").append(jobs.size()).append(" jobs, ").append(failed)
+          .append(" failed, ").append(records).append(" records imputed in ")
+          .append(String.format("%.3f", wallSeconds)).append(" s (")
+          .append(String.format("%.0f", records/Math.max(wallSeconds, 1e-9))).append(" records/s)\n");
+        return sb.toString();
+    }
+
+    /**
+     * @param args the command line arguments, see the class comment
+     */
+    public static void main(String[] args)
+    {
+        BatchRunner runner=new BatchRunner();
+        String manifest=null, dir=null, glob="*.txt", attr=null, outDir=null, summary=null;
+        double emTolerance=EMConvergence.DEFAULT_TOLERANCE;
+        int emIterations=EMConvergence.DEFAULT_MAX_ITERATIONS;
+        try
+        {
+            for(int i=0;i<args.length;i++)
+            {
+                String a=args[i];
+                if(a.equals("-manifest")) manifest=args[++i];
+                else if(a.equals("-dir")) dir=args[++i];
+                else if(a.equals("-glob")) glob=args[++i];
+                else if(a.equals("-attr")) attr=args[++i];
+                else if(a.equals("-out")) outDir=args[++i];
+                else if(a.equals("-summary")) summary=args[++i];
+                else if(a.equals("-workers")) runner.setNoOfWorkers(Integer.parseInt(args[++i]));
+                else if(a.equals("-threads")) runner.setThreadsPerJob(Integer.parseInt(args[++i]));
+                else if(a.equals("-emcache")) runner.setEMCacheSize(Integer.parseInt(args[++i]));
+                else if(a.equals("-emtol")) emTolerance=Double.parseDouble(args[++i]);
+                else if(a.equals("-emiter")) emIterations=Integer.parseInt(args[++i]);
+                else if(a.equals("-emseed")) runner.setEMSeed(Long.parseLong(args[++i]));
+                else if(a.equals("-emmean")) runner.setEMConditionalMean(1);
+                else if(a.equals("-fastk")) runner.setFastBestK(1);
+                else if(a.equals("-maxk")) runner.setMaxNeighbours(Integer.parseInt(args[++i]));
+                else if(a.equals("-approx")) runner.setApproximateNeighbours(Integer.parseInt(args[++i]));
+                else if(a.equals("-snapshot")) runner.setSnapshotImpute(1);
+                else throw new IllegalArgumentException("unknown option "+a);
+            }
+            if((manifest==null)==(dir==null))
+                throw new IllegalArgumentException("give either -manifest or -dir");
+            runner.setEMConvergence(new EMConvergence(emTolerance, emIterations));
+        }
+        catch(RuntimeException ex)
+        {
+            System.err.println("Error: "+ex.getMessage());
+            System.err.println("usage: java kdmi.BatchRunner -manifest jobs.txt [options]");
+            System.err.println("       java kdmi.BatchRunner -dir data [-glob *.txt] [-attr attr.txt] [-out outdir] [options]");
+            System.err.println("options: -workers n -threads n -snapshot -emcache n -emtol t -emiter n -emseed n -emmean -fastk -maxk n -approx n -summary file");
+            System.exit(2);
+        }
+
+        List<Job> jobs;
+        try
+        {
+            if(manifest!=null)
+                jobs=readManifest(new File(manifest));
+            else
+                jobs=listDirectory(new File(dir), glob, attr, new File(outDir==null?dir:outDir));
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(className).log(Level.SEVERE, null, ex);
+            System.exit(2);
+            return;
+        }
+
+        long start=System.nanoTime();
+        runner.runJobs(jobs);
+        String report=getSummary(jobs, (System.nanoTime()-start)/1e9);
+        System.out.print(report);
+        int failed=0;
+        for(Job job:jobs)
+        {
+            if(!job.status.equals("OK")) failed++;
+        }
+        if(summary!=null)
+        {
+            try
+            {
+                Writer out=new BufferedWriter(new FileWriter(summary));
+                try
+                {
+                    out.write(report);
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            catch(IOException ex)
+            {
+                Logger.getLogger(className).log(Level.SEVERE, null, ex);
+                failed++;
+            }
+        }
+        System.exit(failed>0?1:0);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import Jama.*;
+
+/**
+ * Predicts one numerical value of a record (the target) by its conditional
+ * mean given the record's other numerical values (the predictors), under the
+ * mean vector and covariance matrix of a growing set of neighbours. The sums
+ * of the neighbours are kept, so adding neighbours costs O(p^2) each and a
+ * prediction O(p^3) for p predictors, whatever the no. of neighbours. This
+ * is how findBestkNN of kDMI can compare the k of a record without running EM
+ * for every k.
+ *
+ * A neighbour missing the target or a predictor is left out. The regression
+ * is solved as EM solves it (EMFit.regression); if it has no solution the
+ * prediction is the mean of the target.
+ *
+ * @author grahman
+ */
+public class ConditionalMeanProbe
+{
+    private int []attrs;  //the predictors, then the target
+    private int p;  //no. of predictors
+    private double []shift;  //values of the first neighbour added, null before
+    private int n;  //no. of neighbours added
+    private double []sum;  //sum of the shifted values
+    private SymmetricMatrix cross;  //sum of their cross products
+
+    /**
+     * @param predictors the attributes the target is predicted from
+     * @param target the attribute predicted
+     */
+    public ConditionalMeanProbe(int []predictors, int target)
+    {
+        p=predictors.length;
+        attrs=new int[p+1];
+        System.arraycopy(predictors, 0, attrs, 0, p);
+        attrs[p]=target;
+        sum=new double[p+1];
+        cross=new SymmetricMatrix(p+1);
+    }
+
+    /** returns the no. of neighbours added, those left out not counted */
+    public int getNoOfNeighbours()
+    {
+        return n;
+    }
+
+    /**
+     * adds a neighbour, unless it misses the target or a predictor
+     *
+     * @param v the view of the data set
+     * @param row the neighbour
+     */
+    void add(RecordView v, int row)
+    {
+        double []x=new double[p+1];
+        for(int i=0;i<=p;i++)
+        {
+            if(v.isMissing(row,attrs[i])==1) return;
+            x[i]=v.getNumber(row,attrs[i]);
+            if(Double.isNaN(x[i])) return;
+        }
+        if(shift==null) shift=x.clone();
+        for(int i=0;i<=p;i++)
+        {
+            x[i]-=shift[i];
+            sum[i]+=x[i];
+        }
+        cross.rankOneUpdate(1.0, x);
+        n++;
+    }
+
+    /**
+     * returns the conditional mean of the target given predictor values
+     *
+     * @param x the value of each predictor, in the order given
+     * @return the prediction, NaN if no neighbour was added
+     */
+    public double predict(double []x)
+    {
+        if(n==0) return Double.NaN;
+        double []d=new double[p+1];  //the means less the shift
+        for(int i=0;i<=p;i++) d[i]=sum[i]/n;
+        double mean=shift[p]+d[p];
+        if(p==0) return mean;
+        SymmetricMatrix cov_aa=new SymmetricMatrix(p);
+        double [][]cov_am=new double[p][1];
+        for(int i=0;i<p;i++)
+        {
+            for(int j=i;j<p;j++)
+            {
+                cov_aa.set(i,j,cross.get(i,j)/n-d[i]*d[j]);
+            }
+            cov_am[i][0]=cross.get(i,p)/n-d[i]*d[p];
+        }
+        try
+        {
+            Matrix matB=EMFit.regression(cov_aa, new Matrix(cov_am));
+            if(matB==null) return mean;
+            double y=mean;
+            for(int i=0;i<p;i++)
+            {
+                y+=(x[i]-shift[i]-d[i])*matB.get(i,0);
+            }
+            return y;
+        }
+        catch(RuntimeException ex)
+        {
+            return mean;
+        }
+    }
+}
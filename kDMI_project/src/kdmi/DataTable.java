@@ -0,0 +1,276 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import java.util.*;
+
+/**
+ * A data set stored by column with typed values. Numerical attributes are held
+ * as double columns and categorical attributes as int columns of codes into a
+ * dictionary of the attribute's values. Missing values are kept in one bit set
+ * per attribute. The text of the data file is parsed once, when the table is
+ * built, and is only produced again for output.
+ *
+ * A value is missing when its text is "", "?", "�", "NaN" or "  NaN", as in
+ * kDMI. A missing numerical value is held as NaN; its text is "?" unless the
+ * data file had another missing text there. A missing categorical value keeps
+ * the code of its text.
+ *
+ * @author grahman
+ */
+public class DataTable
+{
+    private int noOfRecords;
+    private int noOfAttrs;
+    private int []attrType;  //1->numerical, otherwise categorical
+    private double [][]numCol;  //[attr][record], null for categorical attributes
+    private int [][]catCol;  //[attr][record], null for numerical attributes
+    private List<List<String>> catValues;  //value of each code of an attribute, null for numerical
+    private List<Map<String,Integer>> catCodes;  //code of each value of an attribute, null for numerical
+    private long [][]missing;  //missing bits of each attribute, 64 records per word
+    private HashMap<Long,String> missingText;  //numerical missing texts other than "?"
+
+    /**
+     * builds a table from the text of a data set
+     *
+     * @param data 2D array of values, one row per record
+     * @param attrNType 1D array where 1-> numerical, 0->categorical
+     */
+    public DataTable(String [][]data, int []attrNType)
+    {
+        noOfRecords=data.length;
+        noOfAttrs=attrNType.length;
+        attrType=attrNType.clone();
+        numCol=new double[noOfAttrs][];
+        catCol=new int[noOfAttrs][];
+        catValues=new ArrayList<List<String>>(noOfAttrs);
+        catCodes=new ArrayList<Map<String,Integer>>(noOfAttrs);
+        missing=new long[noOfAttrs][(noOfRecords+63)>>>6];
+        missingText=new HashMap<Long,String>();
+        for(int j=0;j<noOfAttrs;j++)
+        {
+            if(attrType[j]==1)
+            {
+                catValues.add(null);
+                catCodes.add(null);
+                numCol[j]=new double[noOfRecords];
+                for(int i=0;i<noOfRecords;i++)
+                {
+                    if(isMissingText(data[i][j])==1)
+                    {
+                        numCol[j][i]=Double.NaN;
+                        setMissingBit(i,j,1);
+                        if(!data[i][j].equals("?"))
+                            missingText.put(cell(i,j), data[i][j]);
+                    }
+                    else
+                    {
+                        numCol[j][i]=Double.parseDouble(data[i][j]);
+                    }
+                }
+            }
+            else
+            {
+                catCol[j]=new int[noOfRecords];
+                catValues.add(new ArrayList<String>());
+                catCodes.add(new HashMap<String,Integer>());
+                for(int i=0;i<noOfRecords;i++)
+                {
+                    catCol[j][i]=addCode(j,data[i][j]);
+                    setMissingBit(i,j,isMissingText(data[i][j]));
+                }
+            }
+        }
+    }
+
+    /**
+     * returns 1 if a text is a missing value, 0 otherwise
+     *
+     * @param oStr the text of a value
+     * @return 1->Missing, 0->non-missing
+     */
+    public static int isMissingText(String oStr)
+    {
+       int ret=0;
+       if(oStr.equals("")||oStr.equals("?")||oStr.equals("�")||oStr.equals("NaN")||oStr.equals("  NaN"))
+                     {
+                         ret=1;
+                    }
+       return ret;
+    }
+
+    private long cell(int rec, int attr)
+    {
+        return (long)rec*noOfAttrs+attr;
+    }
+
+    private void setMissingBit(int rec, int attr, int flag)
+    {
+        if(flag==1)
+            missing[attr][rec>>>6]|=1L<<rec;
+        else
+            missing[attr][rec>>>6]&=~(1L<<rec);
+    }
+
+    /** returns the number of records */
+    public int getNoOfRecords()
+    {
+        return noOfRecords;
+    }
+
+    /** returns the number of attributes */
+    public int getNoOfAttrs()
+    {
+        return noOfAttrs;
+    }
+
+    /**
+     * returns 1 if a value is missing, 0 otherwise
+     *
+     * @param rec the record
+     * @param attr the attribute
+     * @return 1->Missing, 0->non-missing
+     */
+    public int isMissing(int rec, int attr)
+    {
+        return (int)(missing[attr][rec>>>6]>>>rec)&1;
+    }
+
+    /**
+     * returns the value of a numerical attribute, NaN if it is missing
+     *
+     * @param rec the record
+     * @param attr the numerical attribute
+     * @return the value
+     */
+    public double getNumber(int rec, int attr)
+    {
+        return numCol[attr][rec];
+    }
+
+    /**
+     * sets the value of a numerical attribute, NaN sets the value missing
+     *
+     * @param rec the record
+     * @param attr the numerical attribute
+     * @param val the value
+     */
+    public void setNumber(int rec, int attr, double val)
+    {
+        numCol[attr][rec]=val;
+        setMissingBit(rec,attr,Double.isNaN(val)?1:0);
+    }
+
+    /**
+     * returns the code of a categorical value
+     *
+     * @param rec the record
+     * @param attr the categorical attribute
+     * @return the code
+     */
+    public int getCode(int rec, int attr)
+    {
+        return catCol[attr][rec];
+    }
+
+    /**
+     * sets the code of a categorical value, the value is missing if the text
+     * of the code is missing
+     *
+     * @param rec the record
+     * @param attr the categorical attribute
+     * @param code the code
+     */
+    public void setCode(int rec, int attr, int code)
+    {
+        catCol[attr][rec]=code;
+        setMissingBit(rec,attr,isMissingText(catValues.get(attr).get(code)));
+    }
+
+    /**
+     * returns the code of a categorical value, -1 if no record has the value
+     *
+     * @param attr the categorical attribute
+     * @param value the text of the value
+     * @return the code
+     */
+    public int findCode(int attr, String value)
+    {
+        Integer code=catCodes.get(attr).get(value);
+        if(code==null) return -1;
+        return code;
+    }
+
+    /**
+     * returns the code of a categorical value, adding the value to the
+     * dictionary of the attribute if needed. Not safe to call while other
+     * threads read the table.
+     *
+     * @param attr the categorical attribute
+     * @param value the text of the value
+     * @return the code
+     */
+    public int addCode(int attr, String value)
+    {
+        Integer code=catCodes.get(attr).get(value);
+        if(code==null)
+        {
+            code=catValues.get(attr).size();
+            catValues.get(attr).add(value);
+            catCodes.get(attr).put(value, code);
+        }
+        return code;
+    }
+
+    /**
+     * returns the text of a code
+     *
+     * @param attr the categorical attribute
+     * @param code the code
+     * @return the text of the value
+     */
+    public String getCategory(int attr, int code)
+    {
+        return catValues.get(attr).get(code);
+    }
+
+    /**
+     * returns the text of a value
+     *
+     * @param rec the record
+     * @param attr the attribute
+     * @return the text, a numerical value as by Double.toString
+     */
+    public String getText(int rec, int attr)
+    {
+        if(attrType[attr]!=1)
+        {
+            return catValues.get(attr).get(catCol[attr][rec]);
+        }
+        if(isMissing(rec,attr)==1)
+        {
+            String text=missingText.get(cell(rec,attr));
+            if(text==null) return "?";
+            return text;
+        }
+        return Double.toString(numCol[attr][rec]);
+    }
+
+    /**
+     * returns the text of a record
+     *
+     * @param rec the record
+     * @return 1D array of the texts of the values
+     */
+    public String[] getRow(int rec)
+    {
+        String []row=new String[noOfAttrs];
+        for(int j=0;j<noOfAttrs;j++)
+        {
+            row[j]=getText(rec,j);
+        }
+        return row;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import java.io.*;
+import java.text.DecimalFormat;
+
+/**
+ * Writes a data set to a file through one buffered writer, in the format of
+ * the imputed output: each value followed by ", " and records separated by a
+ * new line. Numerical columns can be given a DecimalFormat pattern, which is
+ * built once per column. A value that already has no more decimal places than
+ * the pattern is written straight from its digits, only values that need
+ * rounding go through the DecimalFormat.
+ *
+ * The writer counts the rows and bytes written and the time taken, see
+ * getReport.
+ *
+ * @author grahman
+ */
+public class DataWriter
+{
+    private File outFile;
+    private Writer out;
+    private DecimalFormat []formats;  //null for columns written as text
+    private int []decimals;  //no. of decimal places of each format
+    private long rows;
+    private long startTime;
+    private long endTime;
+    private long bytes;
+
+    /**
+     * opens the file for writing, replacing its contents
+     *
+     * @param outFile the output file
+     * @throws IOException if the file cannot be opened
+     */
+    public DataWriter(File outFile) throws IOException
+    {
+        this.outFile=outFile;
+        out=new BufferedWriter(new FileWriter(outFile), 1<<16);
+        startTime=System.nanoTime();
+    }
+
+    /**
+     * sets the number format of each column
+     *
+     * @param attrNType 1D array where 1-> numerical, 0->categorical
+     * @param fStr DecimalFormat pattern of each numerical column, such as "####0.00"
+     */
+    public void setNumberFormats(int []attrNType, String []fStr)
+    {
+        formats=new DecimalFormat[attrNType.length];
+        decimals=new int[attrNType.length];
+        for(int j=0;j<attrNType.length;j++)
+        {
+            if(attrNType[j]==1)
+            {
+                formats[j]=new DecimalFormat(fStr[j]);
+                int dot=fStr[j].indexOf('.');
+                decimals[j]=dot<0?0:fStr[j].length()-dot-1;
+            }
+        }
+    }
+
+    /**
+     * writes a record of a table, numerical values use the number formats
+     *
+     * @param data the data set
+     * @param rec the record
+     * @throws IOException if the record cannot be written
+     */
+    public void writeRow(DataTable data, int rec) throws IOException
+    {
+        if(rows>0) out.write('\n');
+        for(int j=0;j<data.getNoOfAttrs();j++)
+        {
+            if(formats!=null && formats[j]!=null && data.isMissing(rec,j)==0)
+            {
+                writeNumber(j, data.getNumber(rec,j));
+            }
+            else
+            {
+                out.write(data.getText(rec,j));
+            }
+            out.write(", ");
+        }
+        rows++;
+    }
+
+    /**
+     * writes a record given as text
+     *
+     * @param row the values of the record
+     * @throws IOException if the record cannot be written
+     */
+    public void writeRow(String []row) throws IOException
+    {
+        if(rows>0) out.write('\n');
+        for(int j=0;j<row.length;j++)
+        {
+            out.write(row[j]);
+            out.write(", ");
+        }
+        rows++;
+    }
+
+    /*
+     * writes a numerical value with the format of a column. Double.toString
+     * gives the shortest digits of the value; if they have no more decimal
+     * places than the format they are padded with zeros, which is what the
+     * DecimalFormat writes as no rounding is needed.
+     */
+    private void writeNumber(int col, double val) throws IOException
+    {
+        String str=Double.toString(val);
+        int dot=str.indexOf('.');
+        if(dot>0 && str.indexOf('E')<0)
+        {
+            int frac=str.length()-dot-1;
+            if(frac==1 && str.charAt(dot+1)=='0') frac=0;
+            if(frac<=decimals[col])
+            {
+                out.write(str, 0, dot);
+                if(decimals[col]>0)
+                {
+                    out.write('.');
+                    out.write(str, dot+1, frac);
+                    for(int i=frac;i<decimals[col];i++) out.write('0');
+                }
+                return;
+            }
+        }
+        out.write(formats[col].format(val));
+    }
+
+    /**
+     * flushes and closes the file
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void close() throws IOException
+    {
+        out.close();
+        endTime=System.nanoTime();
+        bytes=outFile.length();
+    }
+
+    /** returns the no. of rows written */
+    public long getRows()
+    {
+        return rows;
+    }
+
+    /** returns the no. of bytes written, once the writer is closed */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /** returns the seconds taken from opening to closing the file */
+    public double getSeconds()
+    {
+        return (endTime-startTime)/1e9;
+    }
+
+    /**
+     * returns the rows and bytes written, and per second
+     *
+     * @return the report
+     */
+    public String getReport()
+    {
+        double sec=Math.max(getSeconds(), 1e-9);
+        return rows+" rows, "+bytes+" bytes written to "+outFile+" in "
+                +String.format("%.3f", getSeconds())+" s ("
+                +String.format("%.0f", rows/sec)+" rows/s, "
+                +String.format("%.0f", bytes/sec)+" bytes/s)";
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import java.util.*;
+
+/**
+ * Times the k nearest neighbour search of a leaf with the distance computed
+ * through a RecordView, with the full distances of the packed rows of a
+ * DistanceKernel, and with the kernel and the early abort at the k-th nearest
+ * distance (kNN_ary.rankNeighbours). The leaf is a random data set of
+ * numerical and categorical attributes with some missing values. Each way is
+ * run a few times first so the JIT has compiled it.
+ *
+ * <pre>
+ * java kdmi.DistanceBenchmark [rows] [attributes] [k] [queries]
+ * </pre>
+ *
+ * @author grahman
+ */
+public class DistanceBenchmark
+{
+    /**
+     * @param args rows (default 100000), attributes (default 20), k (default
+     * 50) and queries (default 200)
+     */
+    public static void main(String[] args)
+    {
+        int n=args.length>0?Integer.parseInt(args[0]):100000;
+        int m=args.length>1?Integer.parseInt(args[1]):20;
+        int k=args.length>2?Integer.parseInt(args[2]):50;
+        int queries=args.length>3?Integer.parseInt(args[3]):200;
+
+        Random rnd=new Random(1);
+        int []attrNType=new int[m];
+        String [][]data=new String[n][m];
+        for(int j=0;j<m;j++) attrNType[j]=(j%4==3)?0:1;
+        for(int i=0;i<n;i++)
+        {
+            for(int j=0;j<m;j++)
+            {
+                if(rnd.nextInt(50)==0) data[i][j]="?";
+                else if(attrNType[j]==1) data[i][j]=Double.toString(rnd.nextGaussian()*10);
+                else data[i][j]="v"+rnd.nextInt(5);
+            }
+        }
+        DataTable table=new DataTable(data, attrNType);
+        data=null;
+        int []leafR=new int[n];
+        for(int i=0;i<n;i++) leafR[i]=i;
+        int []rec=new int[queries];
+        for(int q=0;q<queries;q++) rec[q]=rnd.nextInt(n);
+
+        DistanceKernel kernel=new DistanceKernel(table, attrNType);
+        kNN_ary knn=new kNN_ary();
+        knn.setDistanceKernel(kernel);
+
+        System.out.println(n+" rows, "+m+" attributes, k="+k+", "+queries+" queries");
+        for(int round=0;round<3;round++)
+        {
+            long view=time(knn, kernel, table, attrNType, leafR, rec, k, 0);
+            long full=time(knn, kernel, table, attrNType, leafR, rec, k, 1);
+            long abort=time(knn, kernel, table, attrNType, leafR, rec, k, 2);
+            if(round<2) continue;
+            System.out.println(String.format("view:                 %8.3f ms/query", view/1e6/rec.length));
+            System.out.println(String.format("kernel, full sums:    %8.3f ms/query", full/1e6/rec.length));
+            System.out.println(String.format("kernel, early abort:  %8.3f ms/query (%.1fx faster than view)",
+                    abort/1e6/rec.length, (double)view/abort));
+        }
+    }
+
+    /*
+     * returns the ns taken to find the k nearest neighbours of each record,
+     * mode 0->distances through the view, 1->full kernel distances, 2->kernel
+     * distances with the early abort
+     */
+    private static long time(kNN_ary knn, DistanceKernel kernel, DataTable table,
+            int []attrNType, int []leafR, int []rec, int k, int mode)
+    {
+        DistanceKernel.Query query=kernel.newQuery();
+        NeighbourHeap heap=new NeighbourHeap(k);
+        int []nn=new int[k];
+        long check=0;
+        long start=System.nanoTime();
+        for(int q=0;q<rec.length;q++)
+        {
+            RecordView v=new RecordView(table, rec[q], attrNType, 0);
+            if(mode==2)
+            {
+                nn=knn.rankNeighbours(attrNType, v, leafR, rec[q], k);
+            }
+            else
+            {
+                kernel.setQuery(query, v);
+                heap.clear();
+                for(int i=0;i<leafR.length;i++)
+                {
+                    if(i==rec[q]) continue;
+                    if(mode==0)
+                        heap.offer(i, knn.calculateDistance(v, leafR[i], attrNType));
+                    else
+                        heap.offer(i, Math.sqrt(kernel.distance(query, leafR[i], Double.POSITIVE_INFINITY)));
+                }
+                heap.drainSorted(nn, null);
+            }
+            check+=nn[0];
+        }
+        long ns=System.nanoTime()-start;
+        if(check==Long.MIN_VALUE) System.out.println(check);
+        return ns;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+
+/**
+ * The rows of a data set packed for the distance of kNN_ary: all values of a
+ * row next to each other in one double array (categorical values as their
+ * codes) and the missing attributes of a row as a bit mask. The distance of a
+ * row to a query is summed in attribute order, as calculateDistance does, and
+ * stops once the partial sum is beyond a bound (checked every four
+ * attributes), so rows that cannot be among the nearest are dropped early.
+ * No memory is allocated per distance.
+ *
+ * Values are packed as they are in the table, not normalised, so distances are
+ * the same as those of calculateDistance. When rows change after packing
+ * (imputing in place), update must be called for them.
+ *
+ * @author grahman
+ */
+public class DistanceKernel
+{
+    private DataTable table;
+    private int []attrType;  //1->numerical, otherwise categorical
+    private int noAttr;
+    private int words;  //longs in the missing mask of a row
+    private double []values;  //[row*noAttr+attr]
+    private long []missing;  //[row*words+word], 1->missing
+
+    /**
+     * packs all rows of a table
+     *
+     * @param table the data set
+     * @param attrNType 1D array where 1-> numerical, 0->categorical
+     */
+    public DistanceKernel(DataTable table, int []attrNType)
+    {
+        this.table=table;
+        this.attrType=attrNType;
+        noAttr=attrNType.length;
+        words=(noAttr+63)>>>6;
+        int n=table.getNoOfRecords();
+        values=new double[n*noAttr];
+        missing=new long[n*words];
+        for(int i=0;i<n;i++)
+        {
+            update(i);
+        }
+    }
+
+    /**
+     * packs a row again from the table
+     *
+     * @param row the row that changed
+     */
+    public void update(int row)
+    {
+        int base=row*noAttr;
+        int mbase=row*words;
+        for(int w=0;w<words;w++) missing[mbase+w]=0;
+        for(int j=0;j<noAttr;j++)
+        {
+            if(table.isMissing(row,j)==1)
+            {
+                missing[mbase+(j>>>6)]|=1L<<j;
+                values[base+j]=0;
+            }
+            else if(attrType[j]==1)
+                values[base+j]=table.getNumber(row,j);
+            else
+                values[base+j]=table.getCode(row,j);
+        }
+    }
+
+    /** returns a new query, to be filled by setQuery */
+    public Query newQuery()
+    {
+        return new Query();
+    }
+
+    /**
+     * sets a query to the record of a view, with its own values
+     *
+     * @param q the query
+     * @param v the view of the record being imputed
+     */
+    void setQuery(Query q, RecordView v)
+    {
+        int rec=v.getRecord();
+        for(int w=0;w<words;w++) q.missing[w]=0;
+        q.noOfAttrs=0;
+        for(int j=0;j<noAttr;j++)
+        {
+            if(v.isMissing(rec,j)==1)
+            {
+                q.missing[j>>>6]|=1L<<j;
+                q.values[j]=0;
+                continue;
+            }
+            if(attrType[j]==1)
+                q.values[j]=v.getNumber(rec,j);
+            else
+                q.values[j]=v.getCode(rec,j);
+            q.attrs[q.noOfAttrs++]=j;
+        }
+    }
+
+    /**
+     * returns the squared distance of a row to a query, or a partial sum above
+     * abortAt as soon as one is reached
+     *
+     * @param q the query
+     * @param row the row
+     * @param abortAt squared distance beyond which the row is not wanted,
+     * infinity for the full distance
+     * @return the squared distance, anything above abortAt if the row is beyond it
+     */
+    public double distance(Query q, int row, double abortAt)
+    {
+        int base=row*noAttr;
+        int mbase=row*words;
+        long rowMissing=0;
+        for(int w=0;w<words;w++) rowMissing|=missing[mbase+w]&~q.missing[w];
+        double sum=0, d;
+        int []attrs=q.attrs;
+        double []qv=q.values;
+        for(int t=0;t<q.noOfAttrs;t++)
+        {
+            int j=attrs[t];
+            //the rows mostly have all attributes of the query
+            if(rowMissing!=0 && (missing[mbase+(j>>>6)]&(1L<<j))!=0) continue;
+            if(attrType[j]==1)
+            {
+                d=values[base+j]-qv[j];
+                sum+=d*d;
+            }
+            else if(values[base+j]!=qv[j])
+            {
+                sum+=1;
+            }
+            if((t&3)==3 && sum>abortAt) return sum;
+        }
+        return sum;
+    }
+
+    /**
+     * The values and missing mask of a record searched for. A query is used by
+     * one thread at a time.
+     */
+    public class Query
+    {
+        private double []values=new double[noAttr];
+        private long []missing=new long[words];
+        private int []attrs=new int[noAttr];  //the attributes the record has, in order
+        private int noOfAttrs;
+    }
+}
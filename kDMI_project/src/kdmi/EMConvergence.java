@@ -0,0 +1,117 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import Jama.*;
+
+/**
+ * When the EM of mviNewEMI stops. EM has converged when neither the mean
+ * vector nor the covariance matrix changed by more than a relative tolerance
+ * in the last iteration: the largest change of an entry over the largest
+ * entry. The test needs no decomposition, it is O(d^2) for d attributes. EM
+ * also stops after a fixed no. of iterations, converged or not. The original
+ * EM stopped after a random 1000 to 32767 iterations; the default max. is the
+ * upper end of that range, so runs that converged there converge here too.
+ *
+ * @author grahman
+ */
+public class EMConvergence
+{
+    /** default relative tolerance of the mean and covariance change */
+    public static final double DEFAULT_TOLERANCE=1e-8;
+    /** default max. no. of EM iterations, the largest cap of the original EM */
+    public static final int DEFAULT_MAX_ITERATIONS=32767;
+
+    private double tolerance;
+    private int maxIterations;
+
+    /** the default policy */
+    public EMConvergence()
+    {
+        this(DEFAULT_TOLERANCE, DEFAULT_MAX_ITERATIONS);
+    }
+
+    /**
+     * @param tolerance relative change below which EM has converged
+     * @param maxIterations max. no. of iterations, at least 1
+     */
+    public EMConvergence(double tolerance, int maxIterations)
+    {
+        if(!(tolerance>=0))
+            throw new IllegalArgumentException("tolerance must be at least 0: "+tolerance);
+        this.tolerance=tolerance;
+        this.maxIterations=Math.max(1, maxIterations);
+    }
+
+    /** returns the relative tolerance */
+    public double getTolerance()
+    {
+        return tolerance;
+    }
+
+    /** returns the max. no. of iterations */
+    public int getMaxIterations()
+    {
+        return maxIterations;
+    }
+
+    /**
+     * returns true if an iteration changed the mean vector and the covariance
+     * matrix by no more than the tolerance
+     *
+     * @param muPrevious mean vector before the iteration
+     * @param mu mean vector after the iteration
+     * @param covPrevious covariance matrix before the iteration
+     * @param cov covariance matrix after the iteration
+     * @return true if EM has converged
+     */
+    public boolean hasConverged(double []muPrevious, double []mu,
+            SymmetricMatrix covPrevious, SymmetricMatrix cov)
+    {
+        if(!(relative(change(muPrevious, mu), largest(mu))<=tolerance)) return false;
+        return relative(cov.maxAbsDifference(covPrevious), cov.maxAbs())<=tolerance;
+    }
+
+    /*
+     * returns a change over the largest entry, the change itself if all
+     * entries are 0
+     */
+    private static double relative(double change, double scale)
+    {
+        return scale>0?change/scale:change;
+    }
+
+    /*
+     * returns the largest absolute difference of two vectors
+     */
+    private static double change(double []previous, double []current)
+    {
+        double d=0;
+        for(int i=0;i<current.length;i++)
+        {
+            d=Math.max(d, Math.abs(current[i]-previous[i]));
+        }
+        return d;
+    }
+
+    /*
+     * returns the largest absolute entry of a vector
+     */
+    private static double largest(double []x)
+    {
+        double s=0;
+        for(int i=0;i<x.length;i++)
+        {
+            s=Math.max(s, Math.abs(x[i]));
+        }
+        return s;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "tolerance "+tolerance+", max. "+maxIterations+" iterations";
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import Jama.*;
+import java.util.*;
+
+/**
+ * The result of an EM run of mviNewEMI: the mean vector and covariance matrix
+ * of the numerical attributes when EM stopped. A fit can impute a record by
+ * the conditional expectation of its missing values given its available ones,
+ * as emImputation does in the last EM iteration, without running EM again.
+ * With a generator it also adds a residual, as emImputation does in the first.
+ *
+ * @author grahman
+ */
+public class EMFit
+{
+    private int []numAttrs;  //attribute index of each numerical attribute of the fit
+    private double []mu;
+    private SymmetricMatrix cov;
+    private double []attrMean;  //mean of the available values of each attribute
+    private int iterations;
+    private int converged;  //1->EM converged, 0->stopped at the max. no. of iterations
+
+    /**
+     * @param attrNType 1D array where 1-> numerical attribute used by EM
+     * @param mu mean vector of the numerical attributes
+     * @param cov covariance matrix of the numerical attributes
+     * @param attrMean mean of the available values of each attribute
+     * @param iterations no. of EM iterations
+     * @param converged 1->EM converged, 0->stopped at the max. no. of iterations
+     */
+    public EMFit(int []attrNType, double []mu, SymmetricMatrix cov, double []attrMean,
+            int iterations, int converged)
+    {
+        numAttrs=new int[mu.length];
+        for(int c=0,k=0;c<attrNType.length;c++)
+        {
+            if(attrNType[c]==1) numAttrs[k++]=c;
+        }
+        this.mu=mu.clone();
+        this.cov=cov.copy();
+        this.attrMean=attrMean.clone();
+        this.iterations=iterations;
+        this.converged=converged;
+    }
+
+    private EMFit()
+    {
+    }
+
+    /*
+     * returns this fit for records of noOfAttrs attributes, where attribute k
+     * of the records the fit was found on is attribute attrs[k]
+     */
+    EMFit onAttributes(int []attrs, int noOfAttrs)
+    {
+        EMFit fit=new EMFit();
+        fit.numAttrs=new int[numAttrs.length];
+        for(int c=0;c<numAttrs.length;c++) fit.numAttrs[c]=attrs[numAttrs[c]];
+        fit.mu=mu;
+        fit.cov=cov;
+        fit.attrMean=new double[noOfAttrs];
+        for(int k=0;k<attrs.length;k++) fit.attrMean[attrs[k]]=attrMean[k];
+        fit.iterations=iterations;
+        fit.converged=converged;
+        return fit;
+    }
+
+    /** returns the no. of EM iterations */
+    public int getIterations()
+    {
+        return iterations;
+    }
+
+    /** returns 1 if EM converged, 0 if it stopped at the max. no. of iterations */
+    public int getConverged()
+    {
+        return converged;
+    }
+
+    /**
+     * returns the coefficients B of the regression of the missing values on
+     * the available ones, cov_aa*B=cov_am. B is solved through the Cholesky
+     * factor of cov_aa, taken on its packed storage, or through its LU factors
+     * if cov_aa is not positive definite, and is null if cov_aa is singular
+     * (the missing values then take their mean).
+     *
+     * @param cov_aa covariance of the available attributes, may be a view
+     * @param cov_am covariance of the available with the missing attributes
+     * @return B, null if cov_aa is singular
+     */
+    static Matrix regression(SymmetricMatrix cov_aa, Matrix cov_am)
+    {
+        PackedCholeskyDecomposition chol=cov_aa.chol();
+        if(chol.isSPD()) return chol.solve(cov_am);
+        Matrix full=cov_aa.toMatrix();
+        if(full.det()==0) return null;
+        return full.solve(cov_am);
+    }
+
+    /**
+     * imputes the missing numerical values of a record by their conditional
+     * expectation under the fit, falling back to the mean
+     *
+     * @param values values of the record, the imputed values are written here
+     * @param missing the mask of the record, bit j%64 of word j/64 set-> attribute j is missing
+     */
+    public void impute(double []values, long []missing)
+    {
+        impute(values, missing, null);
+    }
+
+    /**
+     * imputes the missing numerical values of a record by their conditional
+     * expectation under the fit, falling back to the mean. With a generator,
+     * a residual C*z is added as mviNewEMI.emImputation adds it, where z is
+     * standard normal and C=cov_ma*inv(cov_aa)*cov_am.
+     *
+     * @param values values of the record, the imputed values are written here
+     * @param missing the mask of the record, bit j%64 of word j/64 set-> attribute j is missing
+     * @param residual generator of the residual, null->no residual
+     */
+    public void impute(double []values, long []missing, SplittableRandom residual)
+    {
+        int n=numAttrs.length;
+        int m=0;
+        for(int c=0;c<n;c++)
+        {
+            if(mviNewEMI.isMissing(missing,numAttrs[c])==1)m++;
+        }
+        if(m==0) return;
+        int a=n-m;
+        double [][]X_a=new double[1][a];
+        double [][]Mu_a=new double[1][a];
+        double [][]Mu_m=new double[1][m];
+        int []attrA=new int[a];  //the available attributes, positions in the fit
+        int []attrM=new int[m];  //the missing attributes
+        for(int r=0,i=0,j=0;r<n;r++)
+        {
+            if(mviNewEMI.isMissing(missing,numAttrs[r])==0)
+            {
+                X_a[0][i]=values[numAttrs[r]];
+                Mu_a[0][i]=mu[r];
+                attrA[i++]=r;
+            }
+            else
+            {
+                Mu_m[0][j]=mu[r];
+                attrM[j++]=r;
+            }
+        }
+        Matrix matX_m=new Matrix(Mu_m);
+        if(a>0)
+        {
+            try
+            {
+                Matrix matcov_am=cov.getMatrix(attrA, attrM);
+                Matrix matB=regression(cov.view(attrA), matcov_am);
+                if(matB!=null)
+                {
+                    matX_m=matX_m.plus(new Matrix(X_a).minus(new Matrix(Mu_a)).times(matB));
+                    if(residual!=null)
+                    {
+                        double [][]C=matcov_am.transpose().times(matB).getArray();
+                        double []z=new double[m];
+                        for(int k=0;k<m;k++) z[k]=mviNewEMI.nextGaussian(residual);
+                        for(int k=0;k<m;k++)
+                        {
+                            double e=0;
+                            for(int j=0;j<m;j++) e+=C[k][j]*z[j];
+                            matX_m.set(0,k,matX_m.get(0,k)+e);
+                        }
+                    }
+                }
+            }
+            catch(Exception ex)
+            {
+                matX_m=new Matrix(Mu_m);
+            }
+        }
+        for(int c=0,k=0;c<n;c++)
+        {
+            if(mviNewEMI.isMissing(missing,numAttrs[c])==1)
+            {
+                values[numAttrs[c]]=matX_m.get(0,k++);
+                if(Double.isNaN(values[numAttrs[c]]))
+                    values[numAttrs[c]]=attrMean[numAttrs[c]];
+            }
+        }
+    }
+}
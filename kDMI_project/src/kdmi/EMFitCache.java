@@ -0,0 +1,179 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import java.util.*;
+
+/**
+ * A bounded cache of EM fits used by kDMI.recordImpute. Records of a leaf often
+ * get the same neighbours and have the same missing attributes; a fit found for
+ * one of them is then used to impute the others by its conditional expectation
+ * instead of running EM again. A fit is keyed by the tree, the leaf, the set of
+ * records EM ran on (the neighbours and the record itself) and a fingerprint
+ * of their values and missing masks, so two records that are each other's
+ * neighbours can share a fit, and a fit is not used once values of its
+ * records were imputed in place. The key also gives the seed of its EM run
+ * (see getSeed), so that the fit does not depend on which record ran EM. The least recently used fit is evicted
+ * when the cache is full. The cache may be shared by threads.
+ *
+ * @author grahman
+ */
+public class EMFitCache
+{
+    private int maxEntries;
+    private LinkedHashMap<Key,EMFit> fits;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries the maximum no. of fits kept
+     */
+    public EMFitCache(int maxEntries)
+    {
+        this.maxEntries=maxEntries;
+        fits=new LinkedHashMap<Key,EMFit>(16, 0.75f, true);
+    }
+
+    /**
+     * returns the fit of a key, null if it is not in the cache
+     *
+     * @param key the key
+     * @return the fit
+     */
+    public synchronized EMFit get(Key key)
+    {
+        EMFit fit=fits.get(key);
+        if(fit==null) misses++;
+        else hits++;
+        return fit;
+    }
+
+    /**
+     * adds a fit, evicting the least recently used fit if the cache is full
+     *
+     * @param key the key
+     * @param fit the fit
+     */
+    public synchronized void put(Key key, EMFit fit)
+    {
+        fits.put(key, fit);
+        if(fits.size()>maxEntries)
+        {
+            Iterator<Key> it=fits.keySet().iterator();
+            it.next();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /** returns the no. of lookups that found a fit */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /** returns the no. of lookups that found no fit */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /** returns the no. of fits evicted */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /** returns the hits, misses and hit rate */
+    public synchronized String getReport()
+    {
+        long lookups=hits+misses;
+        double rate=lookups>0?(double)hits/lookups:0.0;
+        return "EM fit cache: "+hits+" hits, "+misses+" misses ("
+                +String.format("%.1f", rate*100)+"% hit rate), "
+                +evictions+" evictions, "+fits.size()+" fits";
+    }
+
+    /**
+     * The key of a fit: tree, leaf, the records of the EM run as a sorted set
+     * and a fingerprint of their numerical values and missing masks.
+     */
+    public static class Key
+    {
+        private int tree;
+        private int leaf;
+        private int []neighbours;
+        private long fingerprint;
+        private int hash;
+
+        /**
+         * @param tree the tree index, -1 if the neighbours come from the whole data set
+         * @param leaf the leaf index
+         * @param neighbours the records of the EM run, the neighbours and then the record
+         * @param values values of the numerical attributes of the records, a row per record of neighbours
+         * @param missing the mask of each record, bit j%64 of word j/64 set-> attribute j is missing
+         */
+        public Key(int tree, int leaf, int []neighbours, double [][]values, long [][]missing)
+        {
+            this.tree=tree;
+            this.leaf=leaf;
+            this.neighbours=neighbours.clone();
+            Arrays.sort(this.neighbours);
+            //the rows are summed so that the order of the records does not matter
+            for(int i=0;i<neighbours.length;i++)
+            {
+                long h=mix(neighbours[i]);
+                for(int j=0;j<values[i].length;j++)
+                {
+                    h=mix(h+Double.doubleToLongBits(values[i][j]));
+                }
+                for(int w=0;w<missing[i].length;w++)
+                {
+                    h=mix(h+missing[i][w]);
+                }
+                fingerprint+=h;
+            }
+            hash=31*(31*(31*tree+leaf)+Arrays.hashCode(this.neighbours))
+                    +(int)(fingerprint^(fingerprint>>>32));
+        }
+
+        /**
+         * returns the seed of the residuals of the EM run of a key, the same
+         * for every record with the key
+         *
+         * @param base the seed of the imputation run
+         * @return the seed
+         */
+        public long getSeed(long base)
+        {
+            return mix(mix(base+fingerprint)+((long)tree<<32|(leaf&0xffffffffL)));
+        }
+
+        /*
+         * scrambles the bits of a value (the finalizer of SplitMix64)
+         */
+        private static long mix(long z)
+        {
+            z=(z^(z>>>30))*0xbf58476d1ce4e5b9L;
+            z=(z^(z>>>27))*0x94d049bb133111ebL;
+            return z^(z>>>31);
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if(!(obj instanceof Key)) return false;
+            Key k=(Key)obj;
+            return hash==k.hash && tree==k.tree && leaf==k.leaf
+                    && fingerprint==k.fingerprint
+                    && Arrays.equals(neighbours, k.neighbours);
+        }
+    }
+}
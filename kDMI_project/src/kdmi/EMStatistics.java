@@ -0,0 +1,198 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import java.util.concurrent.*;
+import Jama.*;
+
+/**
+ * The sums the M-step of mviNewEMI needs for the mean vector and covariance
+ * matrix, kept so an iteration only goes over the records with imputed
+ * values. The sums of the complete records never change and are taken once;
+ * each iteration adds those of the incomplete records to them. Values are
+ * summed less a fixed shift (the mean of the available values of each
+ * attribute), so the covariance does not lose precision to large means.
+ *
+ * The covariance is that of MatrixCalculation.computeCovariance, over all
+ * records, with the imputed values as they are. With missing values counted
+ * as available the mean is over all records too, otherwise it is the mean of
+ * the available values, which does not change between iterations.
+ *
+ * The records are summed in blocks of BLOCK_ROWS, and the sums of the blocks
+ * are added up pairwise in a tree that only depends on the no. of records.
+ * Given a pool, the blocks are summed in parallel; the result is the same to
+ * the last bit with any no. of threads.
+ *
+ * @author grahman
+ */
+public class EMStatistics
+{
+    private int noOfRecords;
+    private int noAttr;
+    private int missAvailable;
+    private int []incomplete;  //the records having a missing value
+    private double []shift;  //mean of the available values of each attribute
+    private double []sumsComplete;  //sums of the complete records, packed as by Block
+    private ForkJoinPool pool;  //null->sum in the calling thread
+    /** no. of records summed one after another */
+    static final int BLOCK_ROWS=1024;
+
+    /**
+     * takes the sums of the complete records
+     *
+     * @param data the values, a row per record
+     * @param MissingMatrix 2D array where 1-> Missing, 0->non-missing
+     * @param MissingRecord 1D array where 1-> Missing in a record, 0->non-missing
+     * @param MissAvailable 0-> consider missing is missing, 1->consider missing is available
+     * @param pool the pool the blocks are summed on, null->in the calling thread
+     */
+    public EMStatistics(double [][]data, int [][]MissingMatrix, int []MissingRecord,
+            int MissAvailable, ForkJoinPool pool)
+    {
+        this.pool=pool;
+        noOfRecords=data.length;
+        noAttr=noOfRecords>0?data[0].length:0;
+        missAvailable=MissAvailable;
+        shift=new double[noAttr];
+        for(int i=0;i<noAttr;i++)
+        {
+            double s=0.0;
+            int cnt=0;
+            for(int r=0;r<noOfRecords;r++)
+            {
+                if(MissingMatrix[r][i]==0)
+                {
+                    cnt++;
+                    s+=data[r][i];
+                }
+            }
+            if(cnt>0) shift[i]=s/(double)cnt;
+        }
+        int noIncomplete=0;
+        for(int r=0;r<noOfRecords;r++)
+        {
+            if(MissingRecord[r]==1) noIncomplete++;
+        }
+        incomplete=new int[noIncomplete];
+        int []complete=new int[noOfRecords-noIncomplete];
+        for(int r=0,k=0,c=0;r<noOfRecords;r++)
+        {
+            if(MissingRecord[r]==1) incomplete[k++]=r;
+            else complete[c++]=r;
+        }
+        sumsComplete=sum(data, complete);
+    }
+
+    /** returns the no. of records having a missing value */
+    public int getNoOfIncomplete()
+    {
+        return incomplete.length;
+    }
+
+    /**
+     * computes the mean vector and covariance matrix of the current values
+     *
+     * @param data the values, with the values imputed so far
+     * @param mu receives the mean vector
+     * @param cov receives the covariance matrix
+     */
+    public void compute(double [][]data, double []mu, SymmetricMatrix cov)
+    {
+        double []sums=sum(data, incomplete);
+        for(int p=0;p<sums.length;p++) sums[p]+=sumsComplete[p];
+        if(noOfRecords==0) return;
+        double n=noOfRecords;
+        double []d=new double[noAttr];  //the mean less the shift
+        for(int i=0;i<noAttr;i++)
+        {
+            if(missAvailable==1) d[i]=sums[i]/n;
+            mu[i]=shift[i]+d[i];
+        }
+        //sum of (x_i-mu_i)(x_j-mu_j) from the sums of the shifted values
+        for(int i=0,p=noAttr;i<noAttr;i++)
+        {
+            for(int j=i;j<noAttr;j++)
+            {
+                cov.set(i,j,(sums[p++]-d[i]*sums[j]-d[j]*sums[i])/n+d[i]*d[j]);
+            }
+        }
+    }
+
+    /*
+     * returns the sums of the shifted values of some records and of their
+     * cross products, packed as by Block
+     */
+    private double[] sum(double [][]data, int []rows)
+    {
+        Block block=new Block(data, rows, 0, rows.length);
+        if(pool==null || rows.length<=BLOCK_ROWS) return block.compute();
+        return pool.invoke(block);
+    }
+
+    /**
+     * Sums the records rows[lo..hi-1]: a block of records one after another,
+     * more records as two halves of whole blocks whose sums are then added.
+     * The sums are packed in one array, the shifted values first and then
+     * the upper triangle of their cross products row by row.
+     */
+    private class Block extends RecursiveTask<double[]>
+    {
+        private static final long serialVersionUID=1;
+        private double [][]data;
+        private int []rows;
+        private int lo, hi;
+
+        Block(double [][]data, int []rows, int lo, int hi)
+        {
+            this.data=data;
+            this.rows=rows;
+            this.lo=lo;
+            this.hi=hi;
+        }
+
+        @Override
+        protected double[] compute()
+        {
+            int blocks=(hi-lo+BLOCK_ROWS-1)/BLOCK_ROWS;
+            if(blocks>1)
+            {
+                int mid=lo+(blocks/2)*BLOCK_ROWS;
+                Block left=new Block(data, rows, lo, mid);
+                Block right=new Block(data, rows, mid, hi);
+                double []l, r;
+                if(pool!=null)
+                {
+                    invokeAll(left, right);
+                    l=left.join();
+                    r=right.join();
+                }
+                else
+                {
+                    l=left.compute();
+                    r=right.compute();
+                }
+                for(int i=0;i<l.length;i++) l[i]+=r[i];
+                return l;
+            }
+            double []sums=new double[noAttr+noAttr*(noAttr+1)/2];
+            double []y=new double[noAttr];
+            for(int k=lo;k<hi;k++)
+            {
+                double []x=data[rows[k]];
+                for(int i=0;i<noAttr;i++)
+                {
+                    y[i]=x[i]-shift[i];
+                    sums[i]+=y[i];
+                }
+                for(int i=0,p=noAttr;i<noAttr;i++)
+                {
+                    double yi=y[i];
+                    for(int j=i;j<noAttr;j++) sums[p++]+=yi*y[j];
+                }
+            }
+            return sums;
+        }
+    }
+}
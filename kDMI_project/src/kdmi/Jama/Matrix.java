@@ -72,6 +72,15 @@ public class Matrix implements Cloneable, java.io.Serializable {
    */
    private int m, n;
 
+   /** Tile of B multiplied by times, rows by columns. */
+   static final int TIMES_BLOCK_K = 64, TIMES_BLOCK_J = 256;
+
+   /** B of fewer columns is multiplied a column at a time, not in tiles. */
+   static final int TIMES_DOT_COLUMNS = 10;
+
+   /** Multiply-adds from which times runs in parallel. */
+   static final long TIMES_PARALLEL_FLOPS = 1L << 20;
+
 /* ------------------------
    Constructors
  * ------------------------ */
@@ -734,7 +743,17 @@ public class Matrix implements Cloneable, java.io.Serializable {
       return this;
    }
 
-   /** Linear algebraic matrix multiplication, A * B
+   /** Linear algebraic matrix multiplication, A * B.
+   B is taken in tiles of TIMES_BLOCK_K rows by TIMES_BLOCK_J columns, and
+   every row of A is multiplied into a tile while it is in cache; a B of fewer
+   than TIMES_DOT_COLUMNS columns is copied a column at a time and dotted
+   with every row of A, which is faster for so few columns. Each element
+   of the product adds up its terms in the order of the inner index, so the
+   product is the same to the last bit as that of the plain triple loop.
+   A product of TIMES_PARALLEL_FLOPS multiply-adds or more called from a task
+   of a fork/join pool is split by rows of A over that pool; called from any
+   other thread, it runs in that thread, so the threads of a caller are never
+   added to by the common pool.
    @param B    another matrix
    @return     Matrix product, A * B
    @exception  IllegalArgumentException Matrix inner dimensions must agree.
@@ -745,20 +764,11 @@ public class Matrix implements Cloneable, java.io.Serializable {
     throw new IllegalArgumentException("Matrix inner dimensions must agree.");
       }
       Matrix X = new Matrix(m,B.n);
-      double[][] C = X.getArray();
-      double[] Bcolj = new double[n];
-      for (int j = 0; j < B.n; j++) {
-         for (int k = 0; k < n; k++) {
-            Bcolj[k] = B.A[k][j];
-         }
-         for (int i = 0; i < m; i++) {
-            double[] Arowi = A[i];
-            double s = 0;
-            for (int k = 0; k < n; k++) {
-               s += Arowi[k]*Bcolj[k];
-            }
-            C[i][j] = s;
-         }
+      if ((long) m * n * B.n >= TIMES_PARALLEL_FLOPS && m > 1
+            && java.util.concurrent.ForkJoinTask.inForkJoinPool()) {
+         new TimesTask(A, B.A, X.A, n, B.n, 0, m).invoke();
+      } else {
+         timesRows(A, B.A, X.A, n, B.n, 0, m);
       }
       return X;
    }
@@ -1036,6 +1046,73 @@ public class Matrix implements Cloneable, java.io.Serializable {
    Private Methods
  * ------------------------ */
 
+   /** Rows i0 to i1-1 of C = A * B, tile by tile of B.
+   @param n    Column dimension of A, row dimension of B.
+   @param p    Column dimension of B.
+   */
+
+   private static void timesRows (double[][] A, double[][] B, double[][] C,
+                                  int n, int p, int i0, int i1) {
+      if (p < TIMES_DOT_COLUMNS) {
+         double[] Bcolj = new double[n];
+         for (int j = 0; j < p; j++) {
+            for (int k = 0; k < n; k++) {
+               Bcolj[k] = B[k][j];
+            }
+            for (int i = i0; i < i1; i++) {
+               double[] Arowi = A[i];
+               double s = 0;
+               for (int k = 0; k < n; k++) {
+                  s += Arowi[k]*Bcolj[k];
+               }
+               C[i][j] = s;
+            }
+         }
+         return;
+      }
+      for (int jj = 0; jj < p; jj += TIMES_BLOCK_J) {
+         int jEnd = Math.min(p, jj + TIMES_BLOCK_J);
+         for (int kk = 0; kk < n; kk += TIMES_BLOCK_K) {
+            int kEnd = Math.min(n, kk + TIMES_BLOCK_K);
+            for (int i = i0; i < i1; i++) {
+               double[] Arowi = A[i];
+               double[] Crowi = C[i];
+               for (int k = kk; k < kEnd; k++) {
+                  double aik = Arowi[k];
+                  double[] Browk = B[k];
+                  for (int j = jj; j < jEnd; j++) {
+                     Crowi[j] += aik*Browk[j];
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   /** Rows of A * B, split in halves down to TIMES_PARALLEL_FLOPS. **/
+
+   private static class TimesTask extends java.util.concurrent.RecursiveAction {
+      private static final long serialVersionUID = 1;
+      private double[][] A, B, C;
+      private int n, p, i0, i1;
+
+      TimesTask (double[][] A, double[][] B, double[][] C,
+                 int n, int p, int i0, int i1) {
+         this.A = A; this.B = B; this.C = C;
+         this.n = n; this.p = p; this.i0 = i0; this.i1 = i1;
+      }
+
+      protected void compute () {
+         if (i1 - i0 < 2 || (long) (i1 - i0) * n * p < 2 * TIMES_PARALLEL_FLOPS) {
+            timesRows(A, B, C, n, p, i0, i1);
+            return;
+         }
+         int mid = (i0 + i1) >>> 1;
+         invokeAll(new TimesTask(A, B, C, n, p, i0, mid),
+                   new TimesTask(A, B, C, n, p, mid, i1));
+      }
+   }
+
    /** Check if size(A) == size(B) **/
 
    private void checkMatrixDimensions (Matrix B) {
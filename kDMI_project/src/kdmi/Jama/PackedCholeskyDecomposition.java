@@ -0,0 +1,142 @@
+package Jama;
+
+   /** Cholesky Decomposition of a symmetric matrix in packed storage.
+   <P>
+   For a symmetric, positive definite matrix A, the Cholesky decomposition
+   is an lower triangular matrix L so that A = L*L'. A is read from its
+   packed lower triangle, or from a view of one, and L is packed the same
+   way, in half the memory of CholeskyDecomposition. The arithmetic is that
+   of CholeskyDecomposition, in the same order, so L and the solutions are
+   the same to the last bit.
+   <P>
+   If the matrix is not positive definite, the constructor returns a
+   partial decomposition and sets an internal flag that may be queried by
+   the isSPD() method.
+   */
+
+public class PackedCholeskyDecomposition implements java.io.Serializable {
+
+/* ------------------------
+   Class variables
+ * ------------------------ */
+
+   private static final long serialVersionUID = 1;
+
+   /** Packed lower triangle of L.
+   @serial internal array storage.
+   */
+   private double[] L;
+
+   /** Row and column dimension (square matrix).
+   @serial matrix dimension.
+   */
+   private int n;
+
+   /** Positive definite flag.
+   @serial is symmetric and positive definite flag.
+   */
+   private boolean isspd;
+
+/* ------------------------
+   Constructor
+ * ------------------------ */
+
+   /** Cholesky algorithm for symmetric and positive definite matrix.
+   @param  Arg   Symmetric matrix.
+   */
+
+   public PackedCholeskyDecomposition (SymmetricMatrix Arg) {
+      // Initialize.
+      n = Arg.getDimension();
+      L = new double[n*(n+1)/2];
+      isspd = true;
+      // Main loop.
+      for (int j = 0; j < n; j++) {
+         int rowj = j*(j+1)/2;
+         double d = 0.0;
+         for (int k = 0; k < j; k++) {
+            int rowk = k*(k+1)/2;
+            double s = 0.0;
+            for (int i = 0; i < k; i++) {
+               s += L[rowk+i]*L[rowj+i];
+            }
+            L[rowj+k] = s = (Arg.get(j,k) - s)/L[rowk+k];
+            d = d + s*s;
+         }
+         d = Arg.get(j,j) - d;
+         isspd = isspd & (d > 0.0);
+         L[rowj+j] = Math.sqrt(Math.max(d,0.0));
+      }
+   }
+
+/* ------------------------
+   Public Methods
+ * ------------------------ */
+
+   /** Is the matrix symmetric and positive definite?
+   @return     true if A is symmetric and positive definite.
+   */
+
+   public boolean isSPD () {
+      return isspd;
+   }
+
+   /** Return triangular factor.
+   @return     L
+   */
+
+   public Matrix getL () {
+      Matrix X = new Matrix(n,n);
+      double[][] C = X.getArray();
+      for (int i = 0, p = 0; i < n; i++) {
+         for (int j = 0; j <= i; j++) {
+            C[i][j] = L[p++];
+         }
+      }
+      return X;
+   }
+
+   /** Solve A*X = B
+   @param  B   A Matrix with as many rows as A and any number of columns.
+   @return     X so that L*L'*X = B
+   @exception  IllegalArgumentException  Matrix row dimensions must agree.
+   @exception  RuntimeException  Matrix is not symmetric positive definite.
+   */
+
+   public Matrix solve (Matrix B) {
+      if (B.getRowDimension() != n) {
+         throw new IllegalArgumentException("Matrix row dimensions must agree.");
+      }
+      if (!isspd) {
+         throw new RuntimeException("Matrix is not symmetric positive definite.");
+      }
+
+      // Copy right hand side.
+      double[][] X = B.getArrayCopy();
+      int nx = B.getColumnDimension();
+
+      // Solve L*Y = B;
+      for (int k = 0; k < n; k++) {
+         int rowk = k*(k+1)/2;
+         for (int j = 0; j < nx; j++) {
+            for (int i = 0; i < k ; i++) {
+               X[k][j] -= X[i][j]*L[rowk+i];
+            }
+            X[k][j] /= L[rowk+k];
+         }
+      }
+
+      // Solve L'*X = Y;
+      for (int k = n-1; k >= 0; k--) {
+         int rowk = k*(k+1)/2;
+         for (int j = 0; j < nx; j++) {
+            for (int i = k+1; i < n ; i++) {
+               X[k][j] -= X[i][j]*L[i*(i+1)/2+k];
+            }
+            X[k][j] /= L[rowk+k];
+         }
+      }
+
+      return new Matrix(X,n,nx);
+   }
+}
@@ -0,0 +1,337 @@
+package Jama;
+
+   /** Symmetric matrix in packed storage.
+   <P>
+   Only the lower triangle of a symmetric matrix is stored, row by row in
+   one array: element (i,j), j &lt;= i, is at i*(i+1)/2+j. This is half the
+   memory of a Matrix, and setting an element sets its mirror too.
+   <P>
+   A view selects some rows, and the same columns, of a symmetric matrix by
+   an index array. The view is a symmetric matrix itself but shares the
+   storage of the matrix it was taken from, so nothing is copied; changing
+   either changes both. The Cholesky decomposition of a symmetric matrix
+   or of a view works on the packed storage, see PackedCholeskyDecomposition.
+   */
+
+public class SymmetricMatrix implements java.io.Serializable {
+
+/* ------------------------
+   Class variables
+ * ------------------------ */
+
+   private static final long serialVersionUID = 1;
+
+   /** Packed lower triangle.
+   @serial internal array storage.
+   */
+   private double[] P;
+
+   /** Row and column dimension.
+   @serial matrix dimension.
+   */
+   private int n;
+
+   /** Row of the storage of each row of a view, null if not a view.
+   @serial rows of a view.
+   */
+   private int[] index;
+
+/* ------------------------
+   Constructors
+ * ------------------------ */
+
+   /** Construct an n-by-n symmetric matrix of zeros.
+   @param n    Row and column dimension.
+   */
+
+   public SymmetricMatrix (int n) {
+      this.n = n;
+      P = new double[n*(n+1)/2];
+   }
+
+   /** Construct a symmetric matrix from the lower triangle of a 2-D array.
+   @param A    Two-dimensional array of doubles, at least n-by-n.
+   @param n    Row and column dimension.
+   */
+
+   public SymmetricMatrix (double[][] A, int n) {
+      this(n);
+      for (int i = 0, p = 0; i < n; i++) {
+         for (int j = 0; j <= i; j++) {
+            P[p++] = A[i][j];
+         }
+      }
+   }
+
+   /** Construct a view.
+   @param P       Packed storage.
+   @param index   Row of the storage of each row.
+   */
+
+   private SymmetricMatrix (double[] P, int[] index) {
+      this.P = P;
+      this.index = index;
+      n = index.length;
+   }
+
+/* ------------------------
+   Public Methods
+ * ------------------------ */
+
+   /** Make a deep copy, a view is copied into a matrix of its own.
+   @return     Copy of the elements.
+   */
+
+   public SymmetricMatrix copy () {
+      SymmetricMatrix X = new SymmetricMatrix(n);
+      for (int i = 0, p = 0; i < n; i++) {
+         for (int j = 0; j <= i; j++) {
+            X.P[p++] = get(i,j);
+         }
+      }
+      return X;
+   }
+
+   /** Access the packed lower triangle, of the whole storage for a view.
+   @return     Pointer to the packed array.
+   */
+
+   public double[] getPackedArray () {
+      return P;
+   }
+
+   /** Copy into a full two-dimensional array.
+   @return     Two-dimensional array copy of matrix elements.
+   */
+
+   public double[][] getArrayCopy () {
+      double[][] C = new double[n][n];
+      for (int i = 0; i < n; i++) {
+         for (int j = 0; j <= i; j++) {
+            C[i][j] = C[j][i] = get(i,j);
+         }
+      }
+      return C;
+   }
+
+   /** Get row and column dimension.
+   @return     n, the number of rows and columns.
+   */
+
+   public int getDimension () {
+      return n;
+   }
+
+   /** Get a single element.
+   @param i    Row index.
+   @param j    Column index.
+   @return     A(i,j)
+   @exception  ArrayIndexOutOfBoundsException
+   */
+
+   public double get (int i, int j) {
+      return P[position(i,j)];
+   }
+
+   /** Set a single element and its mirror.
+   @param i    Row index.
+   @param j    Column index.
+   @param s    A(i,j) and A(j,i).
+   @exception  ArrayIndexOutOfBoundsException
+   */
+
+   public void set (int i, int j, double s) {
+      P[position(i,j)] = s;
+   }
+
+   /** A view of some rows and the same columns, sharing the storage.
+   @param r    Array of row indices.
+   @return     A(r(:),r(:))
+   @exception  ArrayIndexOutOfBoundsException Submatrix indices
+   */
+
+   public SymmetricMatrix view (int[] r) {
+      int[] rows = new int[r.length];
+      for (int i = 0; i < r.length; i++) {
+         if (r[i] < 0 || r[i] >= n) {
+            throw new ArrayIndexOutOfBoundsException("Submatrix indices");
+         }
+         rows[i] = index == null ? r[i] : index[r[i]];
+      }
+      return new SymmetricMatrix(P, rows);
+   }
+
+   /** Get a submatrix, which need not be symmetric.
+   @param r    Array of row indices.
+   @param c    Array of column indices.
+   @return     A(r(:),c(:))
+   @exception  ArrayIndexOutOfBoundsException Submatrix indices
+   */
+
+   public Matrix getMatrix (int[] r, int[] c) {
+      Matrix X = new Matrix(r.length,c.length);
+      double[][] B = X.getArray();
+      try {
+         for (int i = 0; i < r.length; i++) {
+            for (int j = 0; j < c.length; j++) {
+               B[i][j] = get(r[i],c[j]);
+            }
+         }
+      } catch(ArrayIndexOutOfBoundsException e) {
+         throw new ArrayIndexOutOfBoundsException("Submatrix indices");
+      }
+      return X;
+   }
+
+   /** Symmetric rank one update, A = A + alpha * x * x'
+   @param alpha   Scalar.
+   @param x       Vector of length n.
+   @return        A + alpha * x * x'
+   */
+
+   public SymmetricMatrix rankOneUpdate (double alpha, double[] x) {
+      checkVectorDimension(x);
+      for (int i = 0; i < n; i++) {
+         double axi = alpha*x[i];
+         int row = rowStart(i);
+         for (int j = 0; j <= i; j++) {
+            P[index == null ? row + j : position(i,j)] += axi*x[j];
+         }
+      }
+      return this;
+   }
+
+   /** A = A + B
+   @param B    another symmetric matrix
+   @return     A + B
+   */
+
+   public SymmetricMatrix plusEquals (SymmetricMatrix B) {
+      checkMatrixDimensions(B);
+      for (int i = 0; i < n; i++) {
+         for (int j = 0; j <= i; j++) {
+            P[position(i,j)] += B.get(i,j);
+         }
+      }
+      return this;
+   }
+
+   /** Multiply a symmetric matrix by a scalar in place, A = s*A
+   @param s    scalar
+   @return     replace A by s*A
+   */
+
+   public SymmetricMatrix timesEquals (double s) {
+      for (int i = 0; i < n; i++) {
+         for (int j = 0; j <= i; j++) {
+            P[position(i,j)] *= s;
+         }
+      }
+      return this;
+   }
+
+   /** Matrix-vector product, A * x
+   @param x    Vector of length n.
+   @return     A * x
+   */
+
+   public double[] times (double[] x) {
+      checkVectorDimension(x);
+      double[] y = new double[n];
+      for (int i = 0; i < n; i++) {
+         for (int j = 0; j < i; j++) {
+            double a = get(i,j);
+            y[i] += a*x[j];
+            y[j] += a*x[i];
+         }
+         y[i] += get(i,i)*x[i];
+      }
+      return y;
+   }
+
+   /** Largest absolute difference of an element from that of B.
+   @param B    another symmetric matrix
+   @return     max |A(i,j) - B(i,j)|
+   */
+
+   public double maxAbsDifference (SymmetricMatrix B) {
+      checkMatrixDimensions(B);
+      double d = 0;
+      for (int i = 0; i < n; i++) {
+         for (int j = 0; j <= i; j++) {
+            d = Math.max(d, Math.abs(get(i,j) - B.get(i,j)));
+         }
+      }
+      return d;
+   }
+
+   /** Largest absolute element.
+   @return     max |A(i,j)|
+   */
+
+   public double maxAbs () {
+      double s = 0;
+      for (int i = 0; i < n; i++) {
+         for (int j = 0; j <= i; j++) {
+            s = Math.max(s, Math.abs(get(i,j)));
+         }
+      }
+      return s;
+   }
+
+   /** Cholesky Decomposition on the packed storage
+   @return     PackedCholeskyDecomposition
+   @see PackedCholeskyDecomposition
+   */
+
+   public PackedCholeskyDecomposition chol () {
+      return new PackedCholeskyDecomposition(this);
+   }
+
+   /** Copy into a Matrix.
+   @return     Matrix of the elements
+   */
+
+   public Matrix toMatrix () {
+      return new Matrix(getArrayCopy(),n,n);
+   }
+
+/* ------------------------
+   Private Methods
+ * ------------------------ */
+
+   /** Position of element (i,j) in the packed storage. **/
+
+   private int position (int i, int j) {
+      if (i < 0 || j < 0 || i >= n || j >= n) {
+         throw new ArrayIndexOutOfBoundsException(i + "," + j);
+      }
+      if (index != null) {
+         i = index[i];
+         j = index[j];
+      }
+      return i >= j ? i*(i+1)/2 + j : j*(j+1)/2 + i;
+   }
+
+   /** Position of row i of the storage, for a matrix that is not a view. **/
+
+   private static int rowStart (int i) {
+      return i*(i+1)/2;
+   }
+
+   /** Check if size(A) == size(B) **/
+
+   private void checkMatrixDimensions (SymmetricMatrix B) {
+      if (B.n != n) {
+         throw new IllegalArgumentException("Matrix dimensions must agree.");
+      }
+   }
+
+   /** Check if length(x) == n **/
+
+   private void checkVectorDimension (double[] x) {
+      if (x.length != n) {
+         throw new IllegalArgumentException("Vector length must agree.");
+      }
+   }
+}
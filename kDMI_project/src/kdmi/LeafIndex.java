@@ -0,0 +1,99 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+
+/**
+ * The records belonging to each leaf of a tree, stored in compressed sparse row
+ * form. The records of all leaves are kept in one array, grouped by leaf and in
+ * increasing record order within a leaf, and leaf l holds the positions
+ * offsets[l] to offsets[l+1]-1 of that array. Since each record belongs to at
+ * most one leaf of a tree, the index takes O(leaves + records) memory.
+ *
+ * @author grahman
+ */
+public class LeafIndex
+{
+    private int noOfLeaves;
+    private int []offsets;  //start of each leaf in records, offsets[noOfLeaves] is the end
+    private int []records;  //record ids grouped by leaf
+
+    /**
+     * builds the index from the leaf id of each record
+     *
+     * @param leafOfRecord the leaf id of each record, -1 if it belongs to no leaf
+     * @param noOfLeaves the number of leaves of the tree
+     */
+    public LeafIndex(int []leafOfRecord, int noOfLeaves)
+    {
+        this.noOfLeaves=noOfLeaves;
+        offsets=new int[noOfLeaves+1];
+        for(int i=0;i<leafOfRecord.length;i++)
+        {
+            if(leafOfRecord[i]>=0) offsets[leafOfRecord[i]+1]++;
+        }
+        for(int l=0;l<noOfLeaves;l++)
+        {
+            offsets[l+1]+=offsets[l];
+        }
+        records=new int[offsets[noOfLeaves]];
+        int []next=new int[noOfLeaves];
+        System.arraycopy(offsets, 0, next, 0, noOfLeaves);
+        for(int i=0;i<leafOfRecord.length;i++)
+        {
+            if(leafOfRecord[i]>=0)
+            {
+                records[next[leafOfRecord[i]]++]=i;
+            }
+        }
+    }
+
+    /**
+     * returns the number of leaves
+     *
+     * @return the number of leaves
+     */
+    public int getNoOfLeaves()
+    {
+        return noOfLeaves;
+    }
+
+    /**
+     * returns the number of records belonging to a leaf
+     *
+     * @param leaf the leaf id
+     * @return the size of the leaf
+     */
+    public int getLeafSize(int leaf)
+    {
+        return offsets[leaf+1]-offsets[leaf];
+    }
+
+    /**
+     * returns the m-th record of a leaf
+     *
+     * @param leaf the leaf id
+     * @param m the position within the leaf, 0 to getLeafSize(leaf)-1
+     * @return the record id
+     */
+    public int getRecord(int leaf, int m)
+    {
+        return records[offsets[leaf]+m];
+    }
+
+    /**
+     * returns the records of a leaf in increasing order
+     *
+     * @param leaf the leaf id
+     * @return a new array with the record ids of the leaf
+     */
+    public int[] getLeafRecords(int leaf)
+    {
+        int size=getLeafSize(leaf);
+        int []leafR=new int[size];
+        System.arraycopy(records, offsets[leaf], leafR, 0, size);
+        return leafR;
+    }
+}
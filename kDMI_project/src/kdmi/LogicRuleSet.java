@@ -0,0 +1,208 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import java.util.*;
+
+/**
+ * The logic rules of a decision tree compiled into typed tests. Each rule is
+ * tokenized and its bounds parsed once, when the tree is loaded, so a record is
+ * classified with plain comparisons on the values of a DataTable instead of
+ * re-parsing the rule strings. Numerical tests hold their bounds as doubles and
+ * categorical tests hold the table's code of their value.
+ *
+ * A rule has a token per attribute, and a record satisfies it when it passes
+ * the test of every token. "-" and the class attribute have no test. A
+ * categorical token is a value, and the record must have that value. A
+ * numerical token is a bound: "G<x>" needs value > x, "L<x>" needs value <= x,
+ * and "R<a>,<b>" needs min(a,b) <= value <= max(a,b), or value == b when the
+ * bounds are equal. Any other numerical token is failed by every record, and
+ * so is any test of an attribute whose value the record is missing.
+ *
+ * @author grahman
+ */
+public class LogicRuleSet
+{
+    /** test types */
+    static final int CATEGORY=0;   //categorical value equals the code
+    static final int GREATER=1;    //G: value > low
+    static final int LESS_EQUAL=2; //L: value <= high
+    static final int EQUAL=3;      //R with equal bounds: value == high
+    static final int RANGE=4;      //R: low <= value <= high
+    static final int NEVER=5;      //a test no record satisfies
+
+    private int noOfRules;
+    private int [][]testAttr;  //attribute of each test of a rule
+    private int [][]testType;  //type of each test
+    private double [][]testLow;
+    private double [][]testHigh;
+    private int [][]testCode;  //dictionary code of categorical tests
+
+    /**
+     * compiles the rules of a tree
+     *
+     * @param rules logic rules, one per leaf, in the format of the rule file
+     * @param noOfRules the number of rules
+     * @param attrType 1D array where 1-> numerical, 0->categorical, 2->class
+     * @param table the data set to be classified, gives the codes of categorical values
+     */
+    public LogicRuleSet(String []rules, int noOfRules, int []attrType, DataTable table)
+    {
+        this.noOfRules=noOfRules;
+        int noAttr=attrType.length;
+        testAttr=new int[noOfRules][];
+        testType=new int[noOfRules][];
+        testLow=new double[noOfRules][];
+        testHigh=new double[noOfRules][];
+        testCode=new int[noOfRules][];
+        String []rStr=new String[noAttr];
+        for(int r=0;r<noOfRules;r++)
+        {
+            StringTokenizer tokenizerRule= new StringTokenizer(rules[r], " \t\n\r\f");
+            int condition=0;
+            for(int i=0;i<noAttr;i++)
+            {
+                rStr[i]=tokenizerRule.nextToken();
+                if(!rStr[i].equals("-")&&attrType[i]!=2)condition++;
+            }
+            testAttr[r]=new int[condition];
+            testType[r]=new int[condition];
+            testLow[r]=new double[condition];
+            testHigh[r]=new double[condition];
+            testCode[r]=new int[condition];
+            int c=0;
+            for(int i=0;i<noAttr;i++)
+            {
+                if(rStr[i].equals("-")||attrType[i]==2) continue;
+                testAttr[r][c]=i;
+                if(attrType[i]==0)   //for categorical
+                {
+                    testType[r][c]=CATEGORY;
+                    testCode[r][c]=table.findCode(i, rStr[i]); //-1 if no record has the value
+                }
+                else if(attrType[i]==1)  //for numerical
+                {
+                    compileNumericalTest(rStr[i], r, c);
+                }
+                else
+                {
+                    testType[r][c]=NEVER;
+                }
+                c++;
+            }
+        }
+    }
+
+    /*
+     * parses the G/L/R bound of a numerical attribute: "G<x>" is a GREATER
+     * test of x, "L<x>" a LESS_EQUAL test of x, and "R<a>,<b>" an EQUAL test
+     * of b if a==b, a RANGE test of min(a,b)..max(a,b) otherwise. a is the
+     * text up to the last comma without its last character. Other tokens are
+     * NEVER tests.
+     */
+    private void compileNumericalTest(String rStr, int r, int c)
+    {
+        String dh=rStr.substring(1, rStr.length());
+        if(rStr.startsWith("G"))
+        {
+            testType[r][c]=GREATER;
+            testLow[r][c]=Double.parseDouble(dh);
+        }
+        else if(rStr.startsWith("L"))
+        {
+            testType[r][c]=LESS_EQUAL;
+            testHigh[r][c]=Double.parseDouble(dh);
+        }
+        else if(rStr.startsWith("R"))
+        {
+            //the left bound drops its last character, as it always has
+            int indexOfComma = dh.lastIndexOf(",");
+            double leftDh=Double.parseDouble(dh.substring(0, indexOfComma-1));
+            double rightDh=Double.parseDouble(dh.substring(indexOfComma+1, dh.length()));
+            if(leftDh==rightDh)
+            {
+                testType[r][c]=EQUAL;
+                testHigh[r][c]=rightDh;
+            }
+            else
+            {
+                testType[r][c]=RANGE;
+                testLow[r][c]=Math.min(leftDh, rightDh);
+                testHigh[r][c]=Math.max(leftDh, rightDh);
+            }
+        }
+        else
+        {
+            testType[r][c]=NEVER;
+        }
+    }
+
+    /**
+     * finds the first rule satisfied by a record
+     *
+     * @param table the data set
+     * @param rec the record
+     * @return the leaf id, -1 if no rule is satisfied
+     */
+    public int findLeaf(DataTable table, int rec)
+    {
+        for(int r=0;r<noOfRules;r++)
+        {
+            if(isSatisfied(r, table, rec)==1)
+            {
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * 1->the record satisfies rule r, 0->not
+     */
+    private int isSatisfied(int r, DataTable table, int rec)
+    {
+        int []attr=testAttr[r];
+        int []type=testType[r];
+        for(int c=0;c<attr.length;c++)
+        {
+            int i=attr[c];
+            if(table.isMissing(rec,i)==1) return 0;
+            if(type[c]==CATEGORY)
+            {
+                if(table.getCode(rec,i)!=testCode[r][c]) return 0;
+                continue;
+            }
+            double dVal=table.getNumber(rec,i);
+            switch(type[c])
+            {
+                case GREATER:
+                    if(!(dVal>testLow[r][c])) return 0;
+                    break;
+                case LESS_EQUAL:
+                    if(!(dVal<=testHigh[r][c])) return 0;
+                    break;
+                case EQUAL:
+                    if(dVal!=testHigh[r][c]) return 0;
+                    break;
+                case RANGE:
+                    if(!(dVal>=testLow[r][c] && dVal<=testHigh[r][c])) return 0;
+                    break;
+                default:
+                    return 0;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * returns the number of rules
+     *
+     * @return the number of rules (leaves)
+     */
+    public int getNoOfRules()
+    {
+        return noOfRules;
+    }
+}
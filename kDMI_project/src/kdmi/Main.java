@@ -32,9 +32,15 @@ public class Main {
         stdIn = new BufferedReader(new InputStreamReader(System.in));
     }
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments, if any are given the files are
+     * not asked for and the arguments are passed to the batch runner (see BatchRunner)
      */
     public static void main(String[] args) {
+        if(args.length>0)
+        {
+            BatchRunner.main(args);
+            return;
+        }
         Main terminal=new Main();
         String fileAttrInfo = terminal.inputFileName("Please enter the name of the file containing the 2 line attribute information.(example: c:\\data\\attrinfo.txt?)");
         String fileDataFileIn= terminal.inputFileName("Please enter the name of the data file having missing values: (example: c:\\data\\data.txt?)");
@@ -0,0 +1,104 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import Jama.*;
+import java.util.*;
+
+/**
+ * Times Matrix.times against the plain triple loop it replaced, on square
+ * products and on the products of EM: the available values of a group of
+ * records less their mean, times the regression of the missing values on the
+ * available ones. Each product is first checked to be the same to the last
+ * bit, and each way is run a few times first so the JIT has compiled it.
+ * The products are run in the main thread, outside a fork/join pool, so
+ * Matrix.times runs in one thread as well.
+ *
+ * <pre>
+ * java kdmi.MatrixBenchmark [attributes] [records]
+ * </pre>
+ *
+ * @author grahman
+ */
+public class MatrixBenchmark
+{
+    /**
+     * @param args attributes of the EM products (default 200) and records of
+     * a group (default 1024)
+     */
+    public static void main(String[] args)
+    {
+        int d=args.length>0?Integer.parseInt(args[0]):200;
+        int rows=args.length>1?Integer.parseInt(args[1]):1024;
+        Random rnd=new Random(1);
+        System.out.println("product              triple loop ms   times ms   speed-up");
+        int []sizes={64, 256, 512};
+        for(int s: sizes)
+        {
+            run(s+"x"+s+" * "+s+"x"+s, random(rnd,s,s), random(rnd,s,s));
+        }
+        int m=d/10;
+        run(rows+"x"+(d-m)+" * "+(d-m)+"x"+m, random(rnd,rows,d-m), random(rnd,d-m,m));
+        run(rows+"x"+(d-1)+" * "+(d-1)+"x1", random(rnd,rows,d-1), random(rnd,d-1,1));
+        run(d+"x"+d+" * "+d+"x"+d, random(rnd,d,d), random(rnd,d,d));
+    }
+
+    /*
+     * times a product both ways and prints a line
+     */
+    private static void run(String name, Matrix a, Matrix b)
+    {
+        if(!Arrays.deepEquals(tripleLoop(a,b).getArray(), a.times(b).getArray()))
+            throw new IllegalStateException(name+": the products differ");
+        long flops=(long)a.getRowDimension()*a.getColumnDimension()*b.getColumnDimension();
+        int reps=(int)Math.max(1, Math.min(1000, (1L<<28)/flops));
+        double loop=0, tiled=0;
+        for(int round=0;round<3;round++)
+        {
+            long t0=System.nanoTime();
+            for(int r=0;r<reps;r++) tripleLoop(a,b);
+            long t1=System.nanoTime();
+            for(int r=0;r<reps;r++) a.times(b);
+            long t2=System.nanoTime();
+            loop=(t1-t0)/1e6/reps;
+            tiled=(t2-t1)/1e6/reps;
+        }
+        System.out.println(String.format("%-20s %14.3f %10.3f %9.2fx", name, loop, tiled, loop/tiled));
+    }
+
+    /*
+     * the product as Matrix.times took it before: a column of b at a time,
+     * dotted with every row of a
+     */
+    private static Matrix tripleLoop(Matrix a, Matrix b)
+    {
+        int m=a.getRowDimension(), n=a.getColumnDimension(), p=b.getColumnDimension();
+        double [][]A=a.getArray(), B=b.getArray();
+        double [][]C=new double[m][p];
+        double []Bcolj=new double[n];
+        for(int j=0;j<p;j++)
+        {
+            for(int k=0;k<n;k++) Bcolj[k]=B[k][j];
+            for(int i=0;i<m;i++)
+            {
+                double []Arowi=A[i];
+                double s=0;
+                for(int k=0;k<n;k++) s+=Arowi[k]*Bcolj[k];
+                C[i][j]=s;
+            }
+        }
+        return new Matrix(C);
+    }
+
+    private static Matrix random(Random rnd, int m, int n)
+    {
+        double [][]x=new double[m][n];
+        for(int i=0;i<m;i++)
+        {
+            for(int j=0;j<n;j++) x[i][j]=rnd.nextGaussian();
+        }
+        return new Matrix(x);
+    }
+}
@@ -147,11 +147,14 @@ public double getCorrelation(int attrPos1, int attrPos2,double[][]DataElement,in
     // this method calculates the co-variance between each attr
     // pair from initial attribute to final attribute.
     // this method also calculates variance of each attribute.
+    // the covariance is symmetric, so only the upper triangle is computed
+    // and copied to the lower one.
     public void computeCovariance(double[][]DataElement,int numRecords,int numAttr,double []mu,double [][]cov ){
        initialiseCovariance(cov,numAttr);
         for(int i=0; i<numAttr; i++){
-            for(int j=0; j<numAttr; j++){
+            for(int j=i; j<numAttr; j++){
                     cov[i][j]= getCovariance(i,j,DataElement,mu,numRecords,numAttr);
+                    cov[j][i]= cov[i][j];
 //                    if(i==j) {
 //                        cov[i][j]= compVar(i,DataElement,numRecords,numAttr,mu);
 //                    }
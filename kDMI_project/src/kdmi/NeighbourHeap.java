@@ -0,0 +1,158 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+
+/**
+ * A bounded max-heap of the k nearest neighbours found so far, held in two
+ * primitive arrays (record ids and distances). The root is the farthest of the
+ * neighbours kept, so a candidate is tested against it in O(1) and inserted in
+ * O(log k). Neighbours are ordered by distance and then by id, so among
+ * neighbours at the same distance the ones with the smaller ids are kept.
+ *
+ * @author grahman
+ */
+public class NeighbourHeap
+{
+    private int []ids;
+    private double []dists;
+    private int size;
+
+    /**
+     * @param k the no. of neighbours kept
+     */
+    public NeighbourHeap(int k)
+    {
+        ids=new int[k];
+        dists=new double[k];
+    }
+
+    /** returns the no. of neighbours kept so far */
+    public int size()
+    {
+        return size;
+    }
+
+    /** returns the no. of neighbours kept once the heap is full */
+    public int capacity()
+    {
+        return ids.length;
+    }
+
+    /** removes all neighbours */
+    public void clear()
+    {
+        size=0;
+    }
+
+    /**
+     * returns the distance a candidate has to be below to be kept: the distance
+     * of the farthest neighbour once the heap is full, infinity before
+     */
+    public double getBound()
+    {
+        if(size<ids.length) return Double.POSITIVE_INFINITY;
+        return dists[0];
+    }
+
+    /**
+     * offers a candidate, it is kept if the heap is not full or it is nearer
+     * than the farthest neighbour, which is then dropped
+     *
+     * @param id the record id
+     * @param dist the distance of the record
+     * @return true if the candidate was kept
+     */
+    public boolean offer(int id, double dist)
+    {
+        if(size<ids.length)
+        {
+            int i=size++;
+            while(i>0)
+            {
+                int p=(i-1)>>>1;
+                if(!greater(dist, id, dists[p], ids[p])) break;
+                ids[i]=ids[p];
+                dists[i]=dists[p];
+                i=p;
+            }
+            ids[i]=id;
+            dists[i]=dist;
+            return true;
+        }
+        if(size==0 || !greater(dists[0], ids[0], dist, id)) return false;
+        siftDown(id, dist, size);
+        return true;
+    }
+
+    /** returns the position of a record in the heap, -1 if it is not kept */
+    public int indexOf(int id)
+    {
+        for(int i=0;i<size;i++)
+        {
+            if(ids[i]==id) return i;
+        }
+        return -1;
+    }
+
+    /** returns the record at a position of the heap */
+    public int getId(int i)
+    {
+        return ids[i];
+    }
+
+    /** returns the distance at a position of the heap */
+    public double getDistance(int i)
+    {
+        return dists[i];
+    }
+
+    /**
+     * empties the heap into arrays sorted nearest first
+     *
+     * @param sortedIds receives the ids, at least size() long
+     * @param sortedDists receives the distances, at least size() long, may be null
+     * @return the no. of neighbours written
+     */
+    public int drainSorted(int []sortedIds, double []sortedDists)
+    {
+        int n=size;
+        while(size>0)
+        {
+            int last=--size;
+            sortedIds[last]=ids[0];
+            if(sortedDists!=null) sortedDists[last]=dists[0];
+            if(last>0) siftDown(ids[last], dists[last], last);
+        }
+        return n;
+    }
+
+    /*
+     * places (id,dist) at the root and moves it down among the first n entries
+     */
+    private void siftDown(int id, double dist, int n)
+    {
+        int i=0;
+        while(true)
+        {
+            int c=2*i+1;
+            if(c>=n) break;
+            if(c+1<n && greater(dists[c+1], ids[c+1], dists[c], ids[c])) c++;
+            if(!greater(dists[c], ids[c], dist, id)) break;
+            ids[i]=ids[c];
+            dists[i]=dists[c];
+            i=c;
+        }
+        ids[i]=id;
+        dists[i]=dist;
+    }
+
+    /** returns true if (d1,id1) comes after (d2,id2), by distance then by id */
+    static boolean greater(double d1, int id1, double d2, int id2)
+    {
+        int c=Double.compare(d1, d2);
+        return c>0 || (c==0 && id1>id2);
+    }
+}
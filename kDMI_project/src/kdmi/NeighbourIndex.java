@@ -0,0 +1,452 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import java.util.*;
+
+/**
+ * A tree index over the rows of a leaf (or of the whole data set) for exact k
+ * nearest neighbour search with the distance of kNN_ary: squared difference
+ * of numerical values, 0/1 for categorical values, and attributes missing in
+ * either record skipped.
+ *
+ * Skipping missing attributes breaks the triangle inequality, so the pruning
+ * of a vantage point or cover tree would not be exact. Instead, each node
+ * keeps per attribute the range of its numerical values or the set of its
+ * categorical codes, and whether any of its rows miss the attribute. The sum
+ * over the attributes of the query of its distance to these bounds is a lower
+ * bound of the distance to every row of the node, also with skipped
+ * attributes, and a node whose bound is beyond the k-th nearest distance found
+ * so far is not searched. As a missing attribute gives no bound, rows are
+ * first grouped by their missing attributes, and each group is split at the
+ * median of the attribute with the widest spread.
+ *
+ * When rows change after the index is built (imputing in place), update must
+ * be called for them, which widens the bounds of their nodes.
+ *
+ * @author grahman
+ */
+public class NeighbourIndex
+{
+    /** no. of rows in a node that is not split further */
+    private static final int LEAF_SIZE=16;
+
+    private DataTable table;
+    private int []attrType;  //1->numerical, otherwise categorical
+    private int []leafR;  //the rows indexed, a position in leafR identifies a row
+    private int []perm;  //positions in leafR, ordered by node
+    private Node root;
+    private Node []nodeOf;  //node of each position
+    private int []sortedRows;  //rows in ascending order, for update
+    private int []posOfSorted;  //position of each of sortedRows
+    private int []groupStart;  //first place in perm of each group of rows missing the same attributes
+
+    private static class Node
+    {
+        int start, end;  //the node holds perm[start..end-1]
+        Node left, right, parent;
+        double []lo, hi;  //range of the numerical values
+        long [][]codes;  //set of the categorical codes
+        boolean []open;  //true->some row misses the attribute, no bound
+    }
+
+    /** a node waiting to be searched, nearest bound first, then first in perm */
+    private static class Open implements Comparable<Open>
+    {
+        double bound;
+        Node node;
+
+        Open(double bound, Node node)
+        {
+            this.bound=bound;
+            this.node=node;
+        }
+
+        public int compareTo(Open o)
+        {
+            int c=Double.compare(bound, o.bound);
+            return c!=0?c:node.start-o.node.start;
+        }
+    }
+
+    /**
+     * builds the index of a set of rows
+     *
+     * @param table the data set
+     * @param attrNType 1D array where 1-> numerical, 0->categorical
+     * @param leafR the rows to index
+     */
+    public NeighbourIndex(DataTable table, int []attrNType, int []leafR)
+    {
+        this.table=table;
+        this.attrType=attrNType;
+        this.leafR=leafR.clone();
+        int n=leafR.length;
+        perm=new int[n];
+        for(int i=0;i<n;i++) perm[i]=i;
+        nodeOf=new Node[n];
+        groupByMissing();
+        if(n>0) root=build(0, n, null);
+
+        long []key=new long[n];
+        for(int i=0;i<n;i++) key[i]=((long)this.leafR[i]<<32)|i;
+        Arrays.sort(key);
+        sortedRows=new int[n];
+        posOfSorted=new int[n];
+        for(int i=0;i<n;i++)
+        {
+            sortedRows[i]=(int)(key[i]>>>32);
+            posOfSorted[i]=(int)key[i];
+        }
+    }
+
+    /** returns the rows indexed */
+    public int[] getRows()
+    {
+        return leafR;
+    }
+
+    /*
+     * orders perm by the missing attributes of the rows and sets groupStart
+     */
+    private void groupByMissing()
+    {
+        int n=perm.length;
+        final long [][]pattern=new long[n][(attrType.length+63)>>>6];
+        for(int i=0;i<n;i++)
+        {
+            for(int j=0;j<attrType.length;j++)
+            {
+                if(table.isMissing(leafR[i],j)==1) pattern[i][j>>>6]|=1L<<j;
+            }
+        }
+        Integer []order=new Integer[n];
+        for(int i=0;i<n;i++) order[i]=i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                for(int w=0;w<pattern[a].length;w++)
+                {
+                    int c=Long.compare(pattern[a][w], pattern[b][w]);
+                    if(c!=0) return c;
+                }
+                return 0;
+            }
+        });
+        int []starts=new int[n+1];
+        int noOfGroups=0;
+        for(int i=0;i<n;i++)
+        {
+            perm[i]=order[i];
+            if(i==0 || !Arrays.equals(pattern[order[i]], pattern[order[i-1]]))
+                starts[noOfGroups++]=i;
+        }
+        groupStart=Arrays.copyOf(starts, noOfGroups);
+    }
+
+    /*
+     * returns the start of a group inside start+1..end-1 nearest to the middle,
+     * -1 if the rows are all of one group
+     */
+    private int groupSplit(int start, int end)
+    {
+        int i=Arrays.binarySearch(groupStart, (start+end)>>>1);
+        if(i<0) i=-i-1;
+        int best=-1;
+        //the nearest group starts are groupStart[i-1] and groupStart[i]
+        for(int g=i-1;g<=i;g++)
+        {
+            if(g<0 || g>=groupStart.length) continue;
+            int s=groupStart[g];
+            if(s>start && s<end && (best<0 || Math.abs(s-((start+end)>>>1))<Math.abs(best-((start+end)>>>1))))
+                best=s;
+        }
+        return best;
+    }
+
+    private Node build(int start, int end, Node parent)
+    {
+        Node node=new Node();
+        node.start=start;
+        node.end=end;
+        node.parent=parent;
+        setBounds(node);
+        int mid=groupSplit(start, end);
+        if(mid>0)
+        {
+            node.left=build(start, mid, node);
+            node.right=build(mid, end, node);
+            return node;
+        }
+        if(end-start>LEAF_SIZE)
+        {
+            int attr=widestAttribute(node);
+            if(attr>=0)
+            {
+                mid=split(start, end, attr);
+                if(mid>start && mid<end)
+                {
+                    node.left=build(start, mid, node);
+                    node.right=build(mid, end, node);
+                    return node;
+                }
+            }
+        }
+        for(int i=start;i<end;i++) nodeOf[perm[i]]=node;
+        return node;
+    }
+
+    private void setBounds(Node node)
+    {
+        int noAttr=attrType.length;
+        node.lo=new double[noAttr];
+        node.hi=new double[noAttr];
+        node.codes=new long[noAttr][];
+        node.open=new boolean[noAttr];
+        Arrays.fill(node.lo, Double.POSITIVE_INFINITY);
+        Arrays.fill(node.hi, Double.NEGATIVE_INFINITY);
+        for(int i=node.start;i<node.end;i++)
+        {
+            int row=leafR[perm[i]];
+            for(int j=0;j<noAttr;j++)
+            {
+                widen(node, row, j);
+            }
+        }
+    }
+
+    /*
+     * widens the bounds of a node on an attribute to hold the value of a row,
+     * a categorical code above the codes known when the node was built opens
+     * the attribute
+     */
+    private void widen(Node node, int row, int j)
+    {
+        if(table.isMissing(row,j)==1)
+        {
+            node.open[j]=true;
+        }
+        else if(attrType[j]==1)
+        {
+            double val=table.getNumber(row,j);
+            if(val<node.lo[j]) node.lo[j]=val;
+            if(val>node.hi[j]) node.hi[j]=val;
+        }
+        else
+        {
+            int code=table.getCode(row,j);
+            if(node.codes[j]==null) node.codes[j]=new long[(code>>>6)+1];
+            if((code>>>6)<node.codes[j].length)
+                node.codes[j][code>>>6]|=1L<<code;
+            else
+                node.open[j]=true;
+        }
+    }
+
+    /*
+     * returns the attribute whose values spread most over the node, the
+     * squared range of a numerical attribute against 1 for a categorical
+     * attribute with two or more codes; -1 if all rows have the same values
+     */
+    private int widestAttribute(Node node)
+    {
+        int attr=-1;
+        double widest=0;
+        for(int j=0;j<attrType.length;j++)
+        {
+            double spread=0;
+            if(attrType[j]==1)
+            {
+                if(node.hi[j]>node.lo[j]) spread=(node.hi[j]-node.lo[j])*(node.hi[j]-node.lo[j]);
+            }
+            else if(node.codes[j]!=null)
+            {
+                int noCodes=0;
+                for(int w=0;w<node.codes[j].length;w++) noCodes+=Long.bitCount(node.codes[j][w]);
+                if(noCodes>1) spread=1;
+            }
+            if(spread>widest)
+            {
+                widest=spread;
+                attr=j;
+            }
+        }
+        return attr;
+    }
+
+    /*
+     * orders perm[start..end-1] by the value of an attribute, rows missing it
+     * last, and returns the position of the median
+     */
+    private int split(int start, int end, int attr)
+    {
+        int n=end-start;
+        double []key=new double[n];
+        int []pos=new int[n];
+        for(int i=0;i<n;i++)
+        {
+            pos[i]=perm[start+i];
+            int row=leafR[pos[i]];
+            if(table.isMissing(row,attr)==1)
+                key[i]=Double.POSITIVE_INFINITY;
+            else if(attrType[attr]==1)
+                key[i]=table.getNumber(row,attr);
+            else
+                key[i]=table.getCode(row,attr);
+        }
+        kNN_ary.sortNearest(pos, key, 0, n);
+        System.arraycopy(pos, 0, perm, start, n);
+        //move the median to the first row of its value, so equal values stay together
+        int mid=n/2;
+        while(mid>0 && key[mid-1]==key[mid]) mid--;
+        if(mid==0)
+        {
+            mid=n/2;
+            while(mid<n && key[mid-1]==key[mid]) mid++;
+        }
+        return start+mid;
+    }
+
+    /**
+     * widens the bounds of the nodes holding a row to its current values,
+     * nothing is done if the row is not indexed
+     *
+     * @param row the row that changed
+     */
+    public void update(int row)
+    {
+        int i=Arrays.binarySearch(sortedRows, row);
+        if(i<0) return;
+        for(Node node=nodeOf[posOfSorted[i]];node!=null;node=node.parent)
+        {
+            for(int j=0;j<attrType.length;j++)
+            {
+                widen(node, row, j);
+            }
+        }
+    }
+
+    /**
+     * finds the k nearest rows to the record of a view
+     *
+     * @param knn computes the distances
+     * @param v the view of the record being imputed
+     * @param skip position of a row left out (the record itself), -1 for none
+     * @param heap receives the positions in getRows() and distances of the
+     * nearest rows, its capacity is k
+     */
+    void search(kNN_ary knn, RecordView v, int skip, NeighbourHeap heap)
+    {
+        if(root==null || heap.capacity()==0) return;
+        search(root, knn, v, skip, heap, lowerBound(root, v));
+    }
+
+    /**
+     * finds rows near the record of a view, looking at no more than about
+     * maxRows rows: the nodes are visited nearest bound first, and the search
+     * stops once maxRows rows were measured, so some of the k nearest rows may
+     * be missed. With maxRows at least the no. of rows the search is exact.
+     *
+     * @param knn computes the distances
+     * @param v the view of the record being imputed
+     * @param skip position of a row left out (the record itself), -1 for none
+     * @param heap receives the positions in getRows() and distances of the
+     * nearest rows found, its capacity is k
+     * @param maxRows no. of rows measured after which the search stops
+     */
+    void search(kNN_ary knn, RecordView v, int skip, NeighbourHeap heap, int maxRows)
+    {
+        if(root==null || heap.capacity()==0) return;
+        PriorityQueue<Open> queue=new PriorityQueue<Open>();
+        queue.add(new Open(lowerBound(root, v), root));
+        int measured=0;
+        while(!queue.isEmpty() && measured<maxRows)
+        {
+            Open open=queue.poll();
+            if(pruned(open.bound, heap)) break;
+            Node node=open.node;
+            if(node.left==null)
+            {
+                for(int i=node.start;i<node.end;i++)
+                {
+                    int pos=perm[i];
+                    if(pos!=skip)
+                        heap.offer(pos, knn.boundedDistance(v, leafR[pos], attrType, heap.getBound()));
+                }
+                measured+=node.end-node.start;
+                continue;
+            }
+            queue.add(new Open(lowerBound(node.left, v), node.left));
+            queue.add(new Open(lowerBound(node.right, v), node.right));
+        }
+    }
+
+    private void search(Node node, kNN_ary knn, RecordView v, int skip,
+            NeighbourHeap heap, double bound)
+    {
+        if(pruned(bound, heap)) return;
+        if(node.left==null)
+        {
+            for(int i=node.start;i<node.end;i++)
+            {
+                int pos=perm[i];
+                if(pos!=skip)
+                    heap.offer(pos, knn.boundedDistance(v, leafR[pos], attrType, heap.getBound()));
+            }
+            return;
+        }
+        double lb=lowerBound(node.left, v);
+        double rb=lowerBound(node.right, v);
+        if(lb<=rb)
+        {
+            search(node.left, knn, v, skip, heap, lb);
+            search(node.right, knn, v, skip, heap, rb);
+        }
+        else
+        {
+            search(node.right, knn, v, skip, heap, rb);
+            search(node.left, knn, v, skip, heap, lb);
+        }
+    }
+
+    /*
+     * true if no row with a squared distance of at least lb can be kept. Rows
+     * at the k-th distance can still be kept by their smaller position, and
+     * the bound is summed in another order than the distance, hence the slack.
+     */
+    private static boolean pruned(double lb, NeighbourHeap heap)
+    {
+        double d=heap.getBound();
+        return lb>d*d*(1+1e-9);
+    }
+
+    /*
+     * returns the squared distance from the record of a view to the bounds of
+     * a node, which is not more than its squared distance to any row of it
+     */
+    private double lowerBound(Node node, RecordView v)
+    {
+        int rec=v.getRecord();
+        double lb=0, d;
+        for(int j=0;j<attrType.length;j++)
+        {
+            if(node.open[j] || v.isMissing(rec,j)==1) continue;
+            if(attrType[j]==1)
+            {
+                double q=v.getNumber(rec,j);
+                if(q<node.lo[j]) { d=node.lo[j]-q; lb+=d*d; }
+                else if(q>node.hi[j]) { d=q-node.hi[j]; lb+=d*d; }
+            }
+            else
+            {
+                int code=v.getCode(rec,j);
+                long []set=node.codes[j];
+                if(set==null || code<0 || (code>>>6)>=set.length || (set[code>>>6]&(1L<<code))==0)
+                    lb+=1;
+            }
+        }
+        return lb;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+
+/**
+ * The data set as seen while imputing one record. The record being imputed has
+ * its own copy of its values and missing flags, all other rows are read from
+ * the table. Imputing in place also writes each imputed value through to the
+ * table, so the records imputed later see it, while a snapshot imputation leaves
+ * the table unchanged until all records are done (see writeBack).
+ *
+ * The missing flags of the record tell which values still need imputing. They
+ * can be cleared while the value itself stays missing, when nothing could be
+ * imputed for it.
+ *
+ * @author grahman
+ */
+class RecordView
+{
+    private DataTable table;
+    private int rec;
+    private int inPlace;  //1->write imputed values through to the table
+    private double []recNum;  //numerical values of the record
+    private int []recCode;  //categorical codes of the record, -1 for an unknown missing value
+    private int []recMissing;  //1->the value of the record is missing
+    private int []recMV;  //missing flags of the record, 1->still to be imputed
+    private int []ranking;  //neighbours of the record ranked ahead, null if none
+    private int rankingTree, rankingLeaf;  //the leaf ranked
+
+    /**
+     * @param table the data set
+     * @param rec the record being imputed
+     * @param attrNType 1D array where 1-> numerical, 0->categorical
+     * @param inPlace 1->write imputed values to the table, 0->keep them in the view
+     */
+    RecordView(DataTable table, int rec, int []attrNType, int inPlace)
+    {
+        this.table=table;
+        this.rec=rec;
+        this.inPlace=inPlace;
+        int noAttr=attrNType.length;
+        recNum=new double[noAttr];
+        recCode=new int[noAttr];
+        recMissing=new int[noAttr];
+        recMV=new int[noAttr];
+        for(int j=0;j<noAttr;j++)
+        {
+            if(attrNType[j]==1)
+                recNum[j]=table.getNumber(rec,j);
+            else
+                recCode[j]=table.getCode(rec,j);
+            recMissing[j]=table.isMissing(rec,j);
+            recMV[j]=recMissing[j];
+        }
+    }
+
+    /** returns the record being imputed */
+    int getRecord()
+    {
+        return rec;
+    }
+
+    /** returns the missing flags of the record, 1->still to be imputed */
+    int[] getMissingFlags()
+    {
+        return recMV;
+    }
+
+    /** returns 1 if the value of a row is missing */
+    int isMissing(int i, int attr)
+    {
+        if(i==rec) return recMissing[attr];
+        return table.isMissing(i,attr);
+    }
+
+    /** returns the numerical value of a row, NaN if missing */
+    double getNumber(int i, int attr)
+    {
+        if(i==rec) return recNum[attr];
+        return table.getNumber(i,attr);
+    }
+
+    /** returns the categorical code of a row */
+    int getCode(int i, int attr)
+    {
+        if(i==rec) return recCode[attr];
+        return table.getCode(i,attr);
+    }
+
+    /** sets a numerical value of the record, NaN leaves it missing */
+    void setNumber(int attr, double val)
+    {
+        if(Double.isNaN(val)) return;
+        recNum[attr]=val;
+        recMissing[attr]=0;
+        if(inPlace==1) table.setNumber(rec,attr,val);
+    }
+
+    /** sets a categorical code of the record, -1 leaves it missing */
+    void setCode(int attr, int code)
+    {
+        if(code<0) return;
+        recCode[attr]=code;
+        recMissing[attr]=DataTable.isMissingText(table.getCategory(attr,code));
+        if(inPlace==1) table.setCode(rec,attr,code);
+    }
+
+    /**
+     * sets a ranking of the neighbours of the record in leaf l of tree t,
+     * computed before anything is imputed for the record
+     */
+    void setRanking(int t, int l, int []ranking)
+    {
+        this.ranking=ranking;
+        rankingTree=t;
+        rankingLeaf=l;
+    }
+
+    /**
+     * returns the ranking set for leaf l of tree t and drops it, null if there
+     * is none. The ranking is only valid for the values the record had, so it
+     * is dropped on the first call whichever leaf it is for.
+     */
+    int[] takeRanking(int t, int l)
+    {
+        int []r=ranking;
+        ranking=null;
+        if(r!=null && rankingTree==t && rankingLeaf==l) return r;
+        return null;
+    }
+
+    /** writes the values imputed for the record to the table */
+    void writeBack(int []attrNType)
+    {
+        for(int j=0;j<attrNType.length;j++)
+        {
+            if(attrNType[j]==1)
+            {
+                if(recMissing[j]==0) table.setNumber(rec,j,recNum[j]);
+            }
+            else
+            {
+                table.setCode(rec,j,recCode[j]);
+            }
+        }
+    }
+}
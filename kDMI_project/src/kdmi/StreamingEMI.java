@@ -0,0 +1,548 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kdmi;
+import SysFor.*;
+import Jama.*;
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The EMI of mviNewEMI.runEMI for data files too large to be held in memory.
+ * The data file is read again for every EM iteration, a chunk of records at a
+ * time, and only the sums of the numerical values are kept between chunks, so
+ * the memory used is that of a chunk and of a covariance matrix, whatever the
+ * no. of records. The imputed records are written straight to the output file
+ * in the last pass.
+ *
+ * The first pass finds the mean of the available values of each numerical
+ * attribute, the attributes imputed by their mean as chkAvgImp of mviNewEMI
+ * finds them, and the covariance of the data with the missing values taken as
+ * 0, as the first iteration of mviNewEMI does. Every further pass is an EM
+ * iteration: the records are imputed under the mean vector and covariance
+ * matrix of the pass before (the records of a chunk missing the same
+ * attributes together, by emImputation of mviNewEMI) and the covariance of the
+ * imputed data is summed for the next pass. EM stops as set by an
+ * EMConvergence, and the last pass imputes the records under the final fit
+ * and writes them. The passes are the iterations of mviNewEMI, with the
+ * missing values counted as missing, and impute the same values up to rounding,
+ * but for the residuals of the first imputation, which are drawn in another
+ * order.
+ *
+ * <pre>
+ * java kdmi.StreamingEMI attrFile dataFile outputFile [chunkRows]
+ * </pre>
+ *
+ * @author grahman
+ */
+public class StreamingEMI
+{
+    /** class name, used in logging errors */
+    static String className = kdmi.StreamingEMI.class.getName();
+    /** default no. of records read at a time */
+    public static final int DEFAULT_CHUNK_ROWS=4096;
+
+    private int chunkRows=DEFAULT_CHUNK_ROWS;
+    private EMConvergence convergence=new EMConvergence();
+    private long seed;
+    private int seeded=0;  //1->seed is set, 0->a new seed for each run
+    private int conditionalMean=0;
+    private mviNewEMI emi=new mviNewEMI();  //imputes the groups of a chunk
+
+    private int totalAttrs;
+    private int []attrNType;
+    private int []numAttrs;  //attribute index of each numerical attribute
+    private long noOfRecords;
+    private long totalMissing;
+    private double []attrMean;  //mean of the available values of each attribute
+    private int []avgImputation;  //1->the attribute is imputed by attrAvgVal
+    private double []attrAvgVal;
+    private int []emAttrs;  //attribute index of each attribute of EM, null->no EM
+    private double []mu;
+    private SymmetricMatrix cov;
+    private double []shift;  //values are summed less the shift
+    private double []sum;
+    private SymmetricMatrix cross;
+    private double []y;  //a record less the shift
+    private int passes;
+    private int iterations;
+    private int converged;
+
+    /**
+     * sets the no. of records read and imputed at a time
+     *
+     * @param rows no. of records, at least 1
+     */
+    public void setChunkRows(int rows)
+    {
+        chunkRows=Math.max(1, rows);
+    }
+
+    /**
+     * sets when EM stops, by default EMConvergence's defaults
+     *
+     * @param convergence the convergence policy
+     */
+    public void setConvergence(EMConvergence convergence)
+    {
+        this.convergence=convergence;
+    }
+
+    /**
+     * sets the seed of the residuals of the first imputation, so a run can be
+     * repeated; by default every run draws other residuals
+     *
+     * @param seed the seed
+     */
+    public void setSeed(long seed)
+    {
+        this.seed=seed;
+        seeded=1;
+    }
+
+    /**
+     * @param meanOnly 1->impute by the conditional mean only, without the
+     * residuals of the first imputation, 0->with them (default)
+     */
+    public void setConditionalMean(int meanOnly)
+    {
+        conditionalMean=meanOnly;
+    }
+
+    /** returns the no. of records of the last run */
+    public long getNoOfRecords()
+    {
+        return noOfRecords;
+    }
+
+    /** returns the no. of passes over the data file of the last run */
+    public int getPasses()
+    {
+        return passes;
+    }
+
+    /** returns the no. of EM iterations of the last run, 0 if EM did not run */
+    public int getIterations()
+    {
+        return iterations;
+    }
+
+    /** returns 1 if EM of the last run converged, 0 otherwise */
+    public int getConverged()
+    {
+        return converged;
+    }
+
+    /**
+     * imputes a data file into an output file
+     *
+     * @param attrFile contains 2 lines attributes types and name information
+     * @param dataFile data set having missing values to be imputed
+     * @param outputFile filename of the imputed data set
+     */
+    public void runEMI(String attrFile, String dataFile, String outputFile)
+    {
+        FileManager fileManager=new FileManager();
+        String [][]tmpAty=fileManager.readFileAs2DArray(new File(attrFile));
+        totalAttrs=tmpAty[0].length;
+        attrNType=new int[totalAttrs];
+        int noOfNum=0;
+        for(int c=0;c<totalAttrs;c++)
+        {
+            if(tmpAty[0][c].equals("1"))
+            {
+                attrNType[c]=1;
+                noOfNum++;
+            }
+        }
+        numAttrs=new int[noOfNum];
+        for(int c=0,k=0;c<totalAttrs;c++)
+        {
+            if(attrNType[c]==1) numAttrs[k++]=c;
+        }
+        passes=0;
+        iterations=0;
+        converged=0;
+        File file=new File(dataFile);
+        try
+        {
+            scan(file);
+            if(emAttrs!=null && totalMissing>0)
+            {
+                int n=emAttrs.length;
+                double []muPrevious=new double[n];
+                SymmetricMatrix covPrevious=new SymmetricMatrix(n);
+                computeFit();
+                iterations=1;
+                converged=convergence.hasConverged(muPrevious,mu,covPrevious,cov)?1:0;
+                while(converged==0 && iterations<convergence.getMaxIterations())
+                {
+                    muPrevious=mu;
+                    covPrevious=cov;
+                    iterate(file, iterations==1);
+                    computeFit();
+                    iterations++;
+                    converged=convergence.hasConverged(muPrevious,mu,covPrevious,cov)?1:0;
+                }
+                if(converged==0)
+                {
+                    Logger.getLogger(className).log(Level.WARNING,
+                            "EM stopped after "+iterations+" iterations without converging, see setConvergence");
+                }
+            }
+            DataWriter writer=new DataWriter(new File(outputFile));
+            try
+            {
+                write(file, writer, iterations==1);
+            }
+            finally
+            {
+                writer.close();
+            }
+            Logger.getLogger(className).log(Level.FINE, noOfRecords+" records, "+passes
+                    +" passes, "+iterations+" EM iterations; "+writer.getReport());
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(className).log(Level.WARNING,
+                    "Error: IO Exception occured " + ex);
+        }
+    }
+
+    /*
+     * the first pass: counts the records and missing values, finds the mean
+     * of the available values and the attributes imputed by their mean, and
+     * sums the values with the missing ones taken as 0. The first record is
+     * the shift, as the mean is not known yet.
+     */
+    private void scan(File file) throws IOException
+    {
+        int n=numAttrs.length;
+        noOfRecords=0;
+        totalMissing=0;
+        double []total=new double[n];
+        long []cnt=new long[n];
+        double []preVal=new double[n];  //as chkAvgImp, a missing value is 0
+        int []changes=new int[n];
+        shift=null;
+        sum=new double[n];
+        cross=new SymmetricMatrix(n);
+        y=new double[n];
+        double []x=new double[n];
+        String []row=new String[totalAttrs];
+        BufferedReader in=open(file);
+        try
+        {
+            while(readRow(in, row))
+            {
+                for(int c=0;c<totalAttrs;c++)
+                {
+                    if(DataTable.isMissingText(row[c])==1) totalMissing++;
+                }
+                for(int k=0;k<n;k++)
+                {
+                    String str=row[numAttrs[k]];
+                    x[k]=0.0;
+                    if(DataTable.isMissingText(str)==0)
+                    {
+                        x[k]=Double.parseDouble(str);
+                        total[k]+=x[k];
+                        cnt[k]++;
+                    }
+                    if(x[k]!=preVal[k] && changes[k]<2)
+                    {
+                        preVal[k]=x[k];
+                        changes[k]++;
+                    }
+                }
+                if(shift==null) shift=x.clone();
+                accumulate(x);
+                noOfRecords++;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        passes++;
+        attrMean=new double[totalAttrs];
+        avgImputation=new int[totalAttrs];
+        attrAvgVal=new double[totalAttrs];
+        int noOfEM=0;
+        for(int k=0;k<n;k++)
+        {
+            int c=numAttrs[k];
+            if(cnt[k]>0) attrMean[c]=total[k]/(double)cnt[k];
+            if(changes[k]<=1 && noOfRecords!=1)
+            {
+                avgImputation[c]=1;
+                attrAvgVal[c]=preVal[k];
+            }
+            else noOfEM++;
+        }
+        if(noOfRecords>noOfEM)
+        {
+            emAttrs=new int[noOfEM];
+            int []pos=new int[noOfEM];  //position of each attribute of EM in the sums
+            for(int k=0,e=0;k<n;k++)
+            {
+                if(avgImputation[numAttrs[k]]==0)
+                {
+                    pos[e]=k;
+                    emAttrs[e++]=numAttrs[k];
+                }
+            }
+            double []s=new double[noOfEM];
+            double []sh=new double[noOfEM];
+            for(int i=0;i<noOfEM;i++)
+            {
+                s[i]=sum[pos[i]];
+                sh[i]=shift==null?0.0:shift[pos[i]];
+            }
+            sum=s;
+            cross=cross.view(pos).copy();
+            shift=sh;
+            y=new double[noOfEM];
+        }
+        else
+        {   //mean imputation
+            emAttrs=null;
+            for(int k=0;k<n;k++)
+            {
+                int c=numAttrs[k];
+                if(avgImputation[c]==0) attrAvgVal[c]=attrMean[c];
+                avgImputation[c]=1;
+            }
+        }
+    }
+
+    /*
+     * an EM pass: imputes the records under the current fit and sums them,
+     * less the mean which is the shift from here on
+     */
+    private void iterate(File file, boolean first) throws IOException
+    {
+        int n=emAttrs.length;
+        shift=mu.clone();
+        sum=new double[n];
+        cross=new SymmetricMatrix(n);
+        ResidualSource residual=new ResidualSource(first);
+        String [][]rows=new String[chunkRows][totalAttrs];
+        double [][]x=new double[chunkRows][n];
+        int [][]missing=new int[chunkRows][n];
+        BufferedReader in=open(file);
+        try
+        {
+            int len;
+            while((len=readChunk(in, rows))>0)
+            {
+                impute(rows, len, x, missing, residual);
+                for(int i=0;i<len;i++) accumulate(x[i]);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        passes++;
+    }
+
+    /*
+     * the last pass: imputes the records under the final fit and writes them
+     */
+    private void write(File file, DataWriter writer, boolean first) throws IOException
+    {
+        int n=emAttrs==null?0:emAttrs.length;
+        ResidualSource residual=new ResidualSource(first);
+        String [][]rows=new String[chunkRows][totalAttrs];
+        double [][]x=new double[chunkRows][n];
+        int [][]missing=new int[chunkRows][n];
+        BufferedReader in=open(file);
+        try
+        {
+            int len;
+            while((len=readChunk(in, rows))>0)
+            {
+                if(emAttrs!=null) impute(rows, len, x, missing, residual);
+                for(int i=0;i<len;i++)
+                {
+                    String []row=rows[i];
+                    for(int k=0;k<n;k++)
+                    {
+                        if(missing[i][k]==1)
+                        {
+                            double val=x[i][k];
+                            if(Double.isNaN(val)) val=attrMean[emAttrs[k]];
+                            row[emAttrs[k]]=val+"";
+                        }
+                    }
+                    for(int c=0;c<totalAttrs;c++)
+                    {
+                        if(avgImputation[c]==1 && DataTable.isMissingText(row[c])==1)
+                            row[c]=attrAvgVal[c]+"";
+                    }
+                    writer.writeRow(row);
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        passes++;
+    }
+
+    /*
+     * parses the values of the attributes of EM of a chunk, and imputes the
+     * records missing the same attributes together
+     */
+    private void impute(String [][]rows, int len, double [][]x, int [][]missing,
+            ResidualSource residual)
+    {
+        int n=emAttrs.length;
+        int []missingRecord=new int[len];
+        for(int i=0;i<len;i++)
+        {
+            for(int k=0;k<n;k++)
+            {
+                String str=rows[i][emAttrs[k]];
+                missing[i][k]=DataTable.isMissingText(str);
+                if(missing[i][k]==1)
+                {
+                    x[i][k]=0.0;
+                    missingRecord[i]=1;
+                }
+                else x[i][k]=Double.parseDouble(str);
+            }
+        }
+        int [][]patterns=mviNewEMI.groupByMissingPattern(missing, missingRecord);
+        for(int g=0;g<patterns.length;g++)
+        {
+            emi.emImputation(x, patterns[g], missing, mu, cov, n, residual.next());
+        }
+    }
+
+    /*
+     * adds the values of a record, less the shift, to the sums
+     */
+    private void accumulate(double []x)
+    {
+        for(int i=0;i<sum.length;i++)
+        {
+            y[i]=x[i]-shift[i];
+            sum[i]+=y[i];
+        }
+        cross.rankOneUpdate(1.0, y);
+    }
+
+    /*
+     * computes the fit of the sums: the mean of the available values, as EM
+     * counts the missing values as missing, and the covariance of all records
+     * around it
+     */
+    private void computeFit()
+    {
+        int n=emAttrs.length;
+        double N=noOfRecords;
+        mu=new double[n];
+        cov=new SymmetricMatrix(n);
+        double []e=new double[n];  //the mean less the shift
+        for(int i=0;i<n;i++)
+        {
+            mu[i]=attrMean[emAttrs[i]];
+            e[i]=mu[i]-shift[i];
+        }
+        for(int i=0;i<n;i++)
+        {
+            for(int j=i;j<n;j++)
+            {
+                cov.set(i,j,(cross.get(i,j)-e[i]*sum[j]-e[j]*sum[i])/N+e[i]*e[j]);
+            }
+        }
+    }
+
+    /*
+     * opens a data file for reading
+     */
+    private static BufferedReader open(File file) throws IOException
+    {
+        return new BufferedReader(new FileReader(file), 1<<16);
+    }
+
+    /*
+     * reads the next non blank line into a record, as readFileAs2DArray of
+     * FileManager splits it; returns false at the end of the file
+     */
+    private boolean readRow(BufferedReader in, String []row) throws IOException
+    {
+        String line;
+        StringTokenizer tokenizer;
+        do
+        {
+            line=in.readLine();
+            if(line==null) return false;
+            tokenizer=new StringTokenizer(line, " ,\t\n\r\f");
+        }while(!tokenizer.hasMoreTokens());
+        for(int c=0;c<totalAttrs;c++)
+        {
+            if(!tokenizer.hasMoreTokens())
+                throw new IOException("a record has fewer than "+totalAttrs+" values: "+line);
+            row[c]=tokenizer.nextToken();
+        }
+        return true;
+    }
+
+    /*
+     * reads up to rows.length records, returns the no. read
+     */
+    private int readChunk(BufferedReader in, String [][]rows) throws IOException
+    {
+        int len=0;
+        while(len<rows.length && readRow(in, rows[len])) len++;
+        return len;
+    }
+
+    /**
+     * The generators of the residuals of a pass, one split for each group of
+     * each chunk in the order of the file; none unless the pass is the first
+     * imputation and residuals are added.
+     */
+    private class ResidualSource
+    {
+        private SplittableRandom root;
+
+        ResidualSource(boolean first)
+        {
+            if(first && conditionalMean==0)
+                root=seeded==1?new SplittableRandom(seed):new SplittableRandom();
+        }
+
+        SplittableRandom next()
+        {
+            return root==null?null:root.split();
+        }
+    }
+
+    /**
+     * @param args the attribute file, the data file, the output file and the
+     * no. of records read at a time (default DEFAULT_CHUNK_ROWS)
+     */
+    public static void main(String[] args)
+    {
+        if(args.length<3)
+        {
+            System.err.println("usage: java kdmi.StreamingEMI attrFile dataFile outputFile [chunkRows]");
+            System.exit(2);
+        }
+        StreamingEMI emi=new StreamingEMI();
+        if(args.length>3) emi.setChunkRows(Integer.parseInt(args[3]));
+        emi.runEMI(args[0], args[1], args[2]);
+        System.out.println(emi.getNoOfRecords()+" records imputed in "+emi.getPasses()
+                +" passes, "+emi.getIterations()+" EM iterations"
+                +(emi.getConverged()==1?"":" (not converged)"));
+    }
+}
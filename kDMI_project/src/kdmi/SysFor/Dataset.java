@@ -99,6 +99,21 @@ public class Dataset implements Serializable{
 
     }
 
+    /**
+     * Class constructor, creates a data set from a names file and records that
+     * are already held in memory, so no data file needs to be written first.
+     *
+     * @param nameFile the names file represented as array of <code>String</code>,
+     * each line of file in one array position
+     * @param records the records of the data set, one attribute value per column
+     */
+    public Dataset(String [] nameFile, String [][] records)
+    {
+        extractAttributeInfo(nameFile);
+        extractRecords(records);
+        countAllClassSupports();
+    }
+
     /**
      * Used by the parametric constructor to set up all the data structures
      * for the dataset. Reads the name and data file, and then counts all
@@ -285,6 +300,33 @@ public class Dataset implements Serializable{
      * @param dataFile the data file being examined
      */
     public void extractRecords(String [] dataFile)
+    {
+        /** tokenize each line of the file and pass the records on */
+        String [][] records = new String[dataFile.length][];
+        StringTokenizer tokenizer;
+        for(int recIndex=0; recIndex<dataFile.length; recIndex++)
+        {
+            /** need to tokenize the records to extract individual values */
+            tokenizer = new StringTokenizer(dataFile[recIndex]," ,\t\n\r\f");
+            String [] record = new String[numAttributes];
+            for(int currAttr=0; currAttr<numAttributes; currAttr++)
+            {
+                record[currAttr] = tokenizer.nextToken();
+            }
+            records[recIndex] = record;
+        }
+        extractRecords(records);
+    }
+
+    /**
+     * Read the records from an already tokenized data set, one record per row
+     * and one attribute value per column. The rows are stored as they are, so
+     * the caller should not change them afterwards.
+     *
+     * @param records the records of the data set, numAttributes values per row
+     * @see #extractRecords(String[])
+     */
+    public void extractRecords(String [][] records)
     {
         /** create data structure to temporarily store numeric values.
          * These lists will later need to be ordered, and have any duplicate
@@ -292,22 +334,17 @@ public class Dataset implements Serializable{
          */
         ArrayList [] allNumValues = new ArrayList[numAttributes];
         /** get the number of records */
-        numRecords = dataFile.length; //HG: now read the number of records directly here, rather than from name file
+        numRecords = records.length; //HG: now read the number of records directly here, rather than from name file
         allRecords = new Record [numRecords];
         
-        StringTokenizer tokenizer;
         /* loop over all records, create a Record and store.
          * Records are given consecutive record IDs, starting at 0.*/
         for(int recIndex=0; recIndex<numRecords; recIndex++)
         {
-
-            /** need to tokenize the records to extract individual values */
-            tokenizer = new StringTokenizer(dataFile[recIndex]," ,\t\n\r\f");
-            String [] record = new String[numAttributes];
+            String [] record = records[recIndex];
             for(int currAttr=0; currAttr<numAttributes; currAttr++)
             {
-                String currValue = tokenizer.nextToken();
-                record[currAttr] = currValue;
+                String currValue = record[currAttr];
                 /** on first record, create the lists to store numerical values */
                 if(recIndex==0 && attrType[currAttr]=='n')
                 {
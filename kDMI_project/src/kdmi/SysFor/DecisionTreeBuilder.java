@@ -64,6 +64,22 @@ public class DecisionTreeBuilder {
         this.fileOut = fileOut;
     }
 
+    /**
+     * Class constructor for a dataset that is already held in memory. Trees built
+     * this way keep all dataset partitions in memory and nothing is written to
+     * file, see {@link #buildDecisionTreeModel()}.
+     *
+     * @param dataset the dataset we are building the decision tree on
+     * @param method indicates which method should be used to build the decision tree
+     */
+    public DecisionTreeBuilder(Dataset dataset, int method)
+    {
+        fileManager = new FileManager();
+        this.dataset = dataset;
+        this.method = method;
+        this.fileOut = "";
+    }
+
     /**
      * Calls appropriate method depending on which building method was passed
      * to parametric constructor. Will build the decision tree, output logic rules
@@ -88,6 +104,30 @@ public class DecisionTreeBuilder {
 
     }
 
+    /**
+     * Builds and prunes the decision tree without writing anything to file.
+     *
+     * @return the pruned tree and its logic rules for prediction
+     */
+    public DecisionTreeModel buildDecisionTreeModel()
+    {
+        DecisionTree tree;
+        if(method==EXPLORE)
+        {
+            Explore explore = new Explore();
+            tree = explore.buildTree(dataset);
+        }
+        else
+        {
+            See5 see5 = new See5();
+            see5.setPartitionsInMemory(true);
+            tree = see5.buildTree(dataset);
+        }
+        /** now prune the tree */
+        tree = DecisionTreePruner.pruneTree(tree, Constants.ConfidFactor);
+        return new DecisionTreeModel(tree, dataset);
+    }
+
     public void createMultipleTrees()
     {
         if(method==SEE5)
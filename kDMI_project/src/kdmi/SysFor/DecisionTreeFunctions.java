@@ -87,6 +87,38 @@ public class DecisionTreeFunctions {
      */
     public static String readTreeForPrediction(DecisionTree tree, Dataset dataset)
     {       
+        StringBuilder retStr = new StringBuilder();
+
+        /** First line of file needs to be the attribute types for each
+         * attribute, where 0=categorical, 1=numerical, 2=class
+         */
+        int numAttrs = dataset.getNumberOfAttributes();
+        for(int i=0; i<numAttrs; i++)
+        {
+            retStr.append(String.valueOf(dataset.getAttributeTypeForPrediction(i))).append(" ");
+        }
+        retStr.append("\n");
+        /** one logic rule per line */
+        String [] logicRules = readTreeRulesForPrediction(tree, dataset);
+        for(int i=0; i<logicRules.length; i++)
+        {
+            retStr.append(logicRules[i]).append("\n");
+        }
+        return retStr.toString();
+    }
+
+    /**
+     * Returns the logic rules for each leaf node in the decision tree, one rule
+     * per array position. Each rule has the same format as a line of the
+     * output from {@link #readTreeForPrediction(DecisionTree, Dataset)}, leaves
+     * are visited in breadth first order.
+     *
+     * @param tree the decision tree we want to extract logic rules from
+     * @param dataset the original dataset that the tree was built from
+     * @return the logic rule of each leaf node in the decision tree
+     */
+    public static String [] readTreeRulesForPrediction(DecisionTree tree, Dataset dataset)
+    {
         /* create a List for writing the logic rules to as we discover them */
         ArrayList <String []> logicRules = new ArrayList();
         /** get the list of nodes, in breadthFirst traversal order */
@@ -102,32 +134,21 @@ public class DecisionTreeFunctions {
                 logicRules.add(findLogicRule((LeafNode)currNode, dataset));
             }
         }
-        String retStr = "";
-
-        /** First line of file needs to be the attribute types for each
-         * attribute, where 0=categorical, 1=numerical, 2=class
-         */
-        int numAttrs = dataset.getNumberOfAttributes();
-        for(int i=0; i<numAttrs; i++)
-        {
-            retStr+=String.valueOf(dataset.getAttributeTypeForPrediction(i)) + " ";
-        }
-        retStr+="\n";
         /** loop over all logic rules and print to string.
          *NOTE: Need to insert class supports at classIndex
          */
+        String [] rules = new String[logicRules.size()];
         for(int i=0; i<logicRules.size(); i++)
         {
             String [] currRule = logicRules.get(i);
-            /** loop over and print to str. 
-             */
+            StringBuilder rule = new StringBuilder();
             for(int j=0; j<currRule.length; j++)
             {
-                retStr+=currRule[j]+ " ";
+                rule.append(currRule[j]).append(" ");
             }
-            retStr+="\n";
+            rules[i] = rule.toString();
         }
-        return retStr;
+        return rules;
     }
 
 
@@ -0,0 +1,110 @@
+package SysFor;
+
+/**
+ * A pruned decision tree together with its logic rules for prediction. This is
+ * what {@link DecisionTreeBuilder#buildDecisionTreeModel()} returns, so the rules
+ * can be used straight from memory instead of being written to a rule file and
+ * read back again.
+ *
+ * @author grahman
+ * @see DecisionTreeFunctions#readTreeRulesForPrediction(DecisionTree, Dataset)
+ */
+public class DecisionTreeModel {
+
+    /** the pruned decision tree */
+    private DecisionTree tree;
+    /** attribute types for prediction, 0=categorical, 1=numerical, 2=class */
+    private int [] attrTypes;
+    /** logic rule for each leaf, in the same format as a line of the rule file */
+    private String [] logicRules;
+
+    /**
+     * Class constructor.
+     *
+     * @param tree the pruned decision tree
+     * @param dataset the dataset the tree was built from
+     */
+    public DecisionTreeModel(DecisionTree tree, Dataset dataset)
+    {
+        this.tree = tree;
+        attrTypes = new int[dataset.getNumberOfAttributes()];
+        for(int i=0; i<attrTypes.length; i++)
+        {
+            attrTypes[i] = dataset.getAttributeTypeForPrediction(i);
+        }
+        this.logicRules = DecisionTreeFunctions.readTreeRulesForPrediction(tree, dataset);
+    }
+
+    /**
+     * Gets the pruned decision tree.
+     *
+     * @return the decision tree
+     */
+    public DecisionTree getTree()
+    {
+        return tree;
+    }
+
+    /**
+     * Gets the attribute types for prediction, as in the first line of the rule file.
+     *
+     * @return the attribute types, 0=categorical, 1=numerical, 2=class
+     */
+    public int [] getAttrTypes()
+    {
+        return attrTypes;
+    }
+
+    /**
+     * Returns the number of logic rules, which is the number of leaves of the tree.
+     *
+     * @return the number of logic rules
+     */
+    public int getNumberOfRules()
+    {
+        return logicRules.length;
+    }
+
+    /**
+     * Gets the logic rule of a leaf.
+     *
+     * @param leafIndex the leaf index, leaves are numbered in breadth first order
+     * @return the logic rule for the leaf
+     */
+    public String getRule(int leafIndex)
+    {
+        return logicRules[leafIndex];
+    }
+
+    /**
+     * Gets all logic rules, one per leaf.
+     *
+     * @return the logic rules
+     */
+    public String [] getRules()
+    {
+        return logicRules;
+    }
+
+    /**
+     * Returns the rules in the format of a rule file, as written by
+     * {@link DecisionTreeBuilder#createDecisionTree()}. Useful for dumping the
+     * rules to file when debugging.
+     *
+     * @return the logic rules in rule file format
+     */
+    public String toString()
+    {
+        StringBuilder retStr = new StringBuilder();
+        for(int i=0; i<attrTypes.length; i++)
+        {
+            retStr.append(attrTypes[i]).append(" ");
+        }
+        retStr.append("\n");
+        for(int i=0; i<logicRules.length; i++)
+        {
+            retStr.append(logicRules[i]).append("\n");
+        }
+        return retStr.toString();
+    }
+}
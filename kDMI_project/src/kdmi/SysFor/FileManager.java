@@ -627,13 +627,7 @@ public class FileManager {
          */
         int [] attrTypes=null; //will store attribute type for each attribute
         String [] attrNames = null; //store the names of each attribute
-        int classIndex = -1; //the attribute index of the class attribute
         int numAttrs = -1; //the number of attributes
-        double [] numHighDomain=null; //store highest value for numerical attrs
-        double [] numLowDomain=null;  //store lowest value for numerical attrs
-        double [] intervals = null; //store the minimum interval between values
-        ArrayList [] catValues = null; //for each categorical attr store a list of string values
-        ArrayList [] numValues = null; //store list of numerical values
         try{
             /** tokenize first line to find out how many attributes we have, and then
              * store their type, tokenize second line to get attribute names
@@ -643,34 +637,11 @@ public class FileManager {
             numAttrs = tokens.countTokens();
             attrTypes = new int [numAttrs];
             attrNames = new String[numAttrs];
-            /** initalize variables for storing value info */
-            numHighDomain = new double[numAttrs];
-            numLowDomain = new double[numAttrs];
-            intervals = new double[numAttrs];
-            catValues = new ArrayList[numAttrs];
-            numValues = new ArrayList[numAttrs];
-            /** read attribute info, and initialize appropriate variables*/
+            /** read attribute info */
             for(int currAttr=0; currAttr<numAttrs; currAttr++)
             {
-                int currAttrType = Integer.parseInt(tokens.nextToken());//get attr type
-                attrTypes[currAttr]=currAttrType;
+                attrTypes[currAttr]=Integer.parseInt(tokens.nextToken());//get attr type
                 attrNames[currAttr]=tokensNames.nextToken(); //get attr name
-                /** check for attribute type */
-                if(currAttrType==2)//class attribute
-                {
-                    classIndex = currAttr;
-                    catValues[currAttr] = new ArrayList<String>();
-                }
-                else if(currAttrType==0)//categorical attribute
-                {
-                    catValues[currAttr] = new ArrayList<String>();
-                }
-                else //numerical attribute
-                {
-                    numValues[currAttr] = new ArrayList<Double>();
-                    numHighDomain[currAttr] = Double.NEGATIVE_INFINITY;//defaults
-                    numLowDomain[currAttr] = Double.POSITIVE_INFINITY;//defaults
-                }
             }
         }
         catch(Exception e)
@@ -679,6 +650,73 @@ public class FileManager {
                     "Please check the file and try again, no name file created.\n"+ e.toString();
             return retStr;
         }
+        /** tokenize the records, then build the name file from them */
+        String [][] records = new String[dataStrings.length][numAttrs];
+        for(int currRec=0; currRec<dataStrings.length; currRec++)
+        {
+            /** NOTE: Comment in this 'if' statement to read only every second line of the file **/
+            //if(currRec%2==0){
+             StringTokenizer tokens = new StringTokenizer(dataStrings[currRec], " ,\t\n\r\f");
+             //this.appendToFile(new File("../centNervNew.txt"),dataStrings[currRec]+"\n" ); //used to output every second line of file
+            for(int currAttr=0; currAttr<numAttrs; currAttr++)
+            {
+                records[currRec][currAttr] = tokens.nextToken();
+            }
+            //}// uncomment for if statement to appear
+        }
+        String [] nameFile = createNameFile(attrTypes, attrNames, records);
+        StringBuilder outStr = new StringBuilder();
+        for(int i=0; i<nameFile.length; i++)
+        {
+            outStr.append(nameFile[i]);
+            outStr.append("\n");
+        }
+        //write the output string to file
+        this.writeToFile(outFile, outStr.toString());
+
+        return retStr;
+    }
+
+    /**
+     * Generate the lines of a name file from records held in memory. Does the same
+     * job as {@link #extractNameFileFromDataFile(File, File, File)}, but nothing is
+     * read from or written to disk, so the result can be passed straight to
+     * {@link Dataset#Dataset(String[], String[][])}.
+     *
+     * @param attrTypes the type of each attribute, 0=categorical, 1=numerical, 2=class
+     * @param attrNames the name of each attribute
+     * @param records the data set, one attribute value per column
+     * @return each line of the name file in a new cell in the array
+     */
+    public String [] createNameFile(int [] attrTypes, String [] attrNames, String [][] records)
+    {
+        int classIndex = -1; //the attribute index of the class attribute
+        int numAttrs = attrTypes.length; //the number of attributes
+        double [] numHighDomain = new double[numAttrs]; //store highest value for numerical attrs
+        double [] numLowDomain = new double[numAttrs];  //store lowest value for numerical attrs
+        double [] intervals = new double[numAttrs]; //store the minimum interval between values
+        ArrayList [] catValues = new ArrayList[numAttrs]; //for each categorical attr store a list of string values
+        ArrayList [] numValues = new ArrayList[numAttrs]; //store list of numerical values
+        /** initialize variables for storing value info */
+        for(int currAttr=0; currAttr<numAttrs; currAttr++)
+        {
+            /** check for attribute type */
+            if(attrTypes[currAttr]==2)//class attribute
+            {
+                classIndex = currAttr;
+                catValues[currAttr] = new ArrayList<String>();
+            }
+            else if(attrTypes[currAttr]==0)//categorical attribute
+            {
+                catValues[currAttr] = new ArrayList<String>();
+            }
+            else //numerical attribute
+            {
+                numValues[currAttr] = new ArrayList<Double>();
+                numHighDomain[currAttr] = Double.NEGATIVE_INFINITY;//defaults
+                numLowDomain[currAttr] = Double.POSITIVE_INFINITY;//defaults
+            }
+        }
         /** 
          * Now we know how many attributes and types, we need to find the ranges and values.
          * For categorical attributes, we are building a list of values. For numerical
@@ -686,20 +724,12 @@ public class FileManager {
          * to an Integer list. Later we will sort these list to determine the minimum interval
          * between values, and the values for categorical.
          */
-        for(int currRec=0; currRec<dataStrings.length; currRec++)
+        for(int currRec=0; currRec<records.length; currRec++)
         {
-            //System.out.println("rec: " + currRec + "dataStrings " + dataStrings.length + "\n" + dataStrings[currRec]);
-            /**for each record, we need to tokenize the values for each attribute */
-
-            /** NOTE: Comment in this 'if' statement to read only every second line of the file **/
-            //if(currRec%2==0){
-             StringTokenizer tokens = new StringTokenizer(dataStrings[currRec], " ,\t\n\r\f");
-             //this.appendToFile(new File("../centNervNew.txt"),dataStrings[currRec]+"\n" ); //used to output every second line of file
             /** for each attribute value, we determine which type */
             for(int currAttr=0; currAttr<numAttrs; currAttr++)
             {       
-                String currValue = tokens.nextToken();
-                //System.out.println("currAttr: " + currAttr + " currValue: " + currValue);
+                String currValue = records[currRec][currAttr];
                 /** if categorical attribute, or class attribute, just add the value
                  * to the list for that attribute
                  */
@@ -730,7 +760,6 @@ public class FileManager {
                 }
 
             }
-            //}// uncomment for if statement to appear
         }
 
        /** remove duplicate values from each list, and find intervals for numerical
@@ -756,8 +785,8 @@ public class FileManager {
                 intervals[currAttr] = GeneralFunctions.findInterval(allValues[currAttr]);
             }
         }
-        /** Now have all info we need to name file, just need to build the output String */
-        StringBuilder outStr = new StringBuilder();
+        /** Now have all info we need to name file, just need to build the output lines */
+        String [] nameFile = new String[numAttrs+2];
         /*<p>Note on format of nameFile</p>
          * <ul>
          *   <li><strong>First line:</strong> class attribute index, number of class values</li>
@@ -769,11 +798,9 @@ public class FileManager {
          */
         /** first line */
         int numClasses = allValues[classIndex].size();
-        String firstLine = classIndex + ", " + numClasses + ",\n";
-        outStr.append(firstLine);
+        nameFile[0] = classIndex + ", " + numClasses + ",";
         /** second line */
-        String secondLine = dataStrings.length + ", " + numAttrs + ",\n";
-        outStr.append(secondLine);
+        nameFile[1] = records.length + ", " + numAttrs + ",";
         /** now for each attribute */
         for(int currAttr=0; currAttr<numAttrs; currAttr++)
         {
@@ -809,13 +836,9 @@ public class FileManager {
                         + intervals[currAttr]+ ", " + nums + ",";
                 currLine.append(otherDetails);
             }
-            currLine.append("\n");//end line
-            outStr.append(currLine.toString());
+            nameFile[currAttr+2] = currLine.toString();
         }
-        //write the output string to file
-        this.writeToFile(outFile, outStr.toString());
-
-        return retStr;
+        return nameFile;
     }
 
     /*
@@ -22,6 +22,8 @@ public class See5 {
     Dataset dataset;
     /** the decision tree being built */
     DecisionTree tree;
+    /** true if dataset partitions are kept in memory rather than written to file */
+    boolean partitionsInMemory;
 
     /**
      * Class constructor, only initializes instance data to defaults.
@@ -84,6 +86,96 @@ public class See5 {
         return this.buildTree();
     }
 
+    /**
+     * Sets whether dataset partitions are kept in memory while the tree is built.
+     * By default each partition is written to a <code>.ds</code> file in the working
+     * directory and read back when needed, which keeps the heap small but means
+     * two trees cannot be built in the same directory at the same time.
+     *
+     * @param inMemory true to keep partitions in memory, false to use files
+     */
+    public void setPartitionsInMemory(boolean inMemory)
+    {
+        partitionsInMemory = inMemory;
+    }
+
+    /**
+     * Partitions a dataset on a split, see {@link Dataset#generateDatasetPartitions(int, String)}.
+     * Returns the partitions themselves when they are kept in memory, otherwise
+     * the files they were written to.
+     *
+     * @param dataset the dataset being partitioned
+     * @param attrIndex the split attribute index
+     * @param split the split value index, or "all" for a categorical split
+     * @param fileName adds this to the front of each numbered output file
+     * @return the partitions
+     */
+    private List<Partition> generatePartitions(Dataset dataset, int attrIndex, String split, String fileName)
+    {
+        List<Partition> partitions = new ArrayList<Partition>();
+        if(partitionsInMemory)
+        {
+            for(Dataset part: dataset.generateDatasetPartitions(attrIndex, split))
+            {
+                partitions.add(new InMemoryPartition(part));
+            }
+        }
+        else
+        {
+            for(File part: dataset.generateDatasetPartitionsToFile(attrIndex, split, fileName))
+            {
+                partitions.add(new FilePartition(part));
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * A partition of the dataset made while the tree is built.
+     */
+    private interface Partition
+    {
+        /** returns the dataset of the partition */
+        Dataset read();
+    }
+
+    /**
+     * A partition kept in memory.
+     */
+    private static class InMemoryPartition implements Partition
+    {
+        private Dataset dataset;
+
+        InMemoryPartition(Dataset dataset)
+        {
+            this.dataset = dataset;
+        }
+
+        public Dataset read()
+        {
+            return dataset;
+        }
+    }
+
+    /**
+     * A partition written to a file, read back each time it is needed.
+     */
+    private static class FilePartition implements Partition
+    {
+        private File file;
+
+        FilePartition(File file)
+        {
+            this.file = file;
+        }
+
+        public Dataset read()
+        {
+            FileManager fileManager = new FileManager();
+            return fileManager.readDatasetFromFile(file);
+        }
+    }
+
     /**
      * Given a current partition of the dataset, initially the full dataset,
      * this method will calculate a split point and then create a node in the
@@ -108,10 +200,17 @@ public class See5 {
          * store the files of each current partitions of the dataset for the current level,
          * this will start out storing only one partition, the whole dataset
          */
-        List <File> currentPartitions = new ArrayList<File>();
-        File initDataset = new File("data.ds");
-        fileManager.writeDatasetToFile(initDataset, dataset);
-        currentPartitions.add(initDataset);
+        List <Partition> currentPartitions = new ArrayList<Partition>();
+        if(partitionsInMemory)
+        {
+            currentPartitions.add(new InMemoryPartition(dataset));
+        }
+        else
+        {
+            File initDataset = new File("data.ds");
+            fileManager.writeDatasetToFile(initDataset, dataset);
+            currentPartitions.add(new FilePartition(initDataset));
+        }
         /**
          * store the subtree nodes for the level above the one we're currently
          * creating, starts out storing the overall root node for the tree
@@ -154,8 +253,7 @@ public class See5 {
             {
                 //System.out.println("currPart: " + currPart);
                 /* read current partition from file */
-                File currFile = currentPartitions.get(currPart);
-                Dataset currPartition = fileManager.readDatasetFromFile(currFile);
+                Dataset currPartition = currentPartitions.get(currPart).read();
                 //System.out.println(currFile + " " + currPartition.getNumRecords());
                 currSplits[currPart]=calculateSplit(currPartition);
                 //System.out.println("split calculated");
@@ -164,7 +262,7 @@ public class See5 {
              * tree nodes for the next level (iteration). These will be set to 
              * currentPartitions and currentRootNodes at the end of the do-while
              */
-            List <File> nextLevelPartitions = new ArrayList<File>();
+            List <Partition> nextLevelPartitions = new ArrayList<Partition>();
             List <Node> nextLevelRootNodes = new ArrayList<Node>();
 
             /** loop over all splits to generate the current level of the tree.
@@ -174,8 +272,7 @@ public class See5 {
             {
                 Split split = currSplits[splitInd];
                 /* read current partition from file */
-                File currFile = currentPartitions.get(splitInd);
-                Dataset currentPartition = fileManager.readDatasetFromFile(currFile);
+                Dataset currentPartition = currentPartitions.get(splitInd).read();
 
                 //Dataset currentPartition = currentPartitions.get(splitInd);
                 Node currNode = currentRootNodes.get(splitInd);
@@ -199,7 +296,7 @@ public class See5 {
                         /** categorical attribute */
                         int attrIndex = split.getAttrIndex();
                         String fileNameStart = level + "-" + splitInd+"-";
-                        List<File> partitions = currentPartition.generateDatasetPartitionsToFile(attrIndex, "all", fileNameStart);
+                        List <Partition> partitions = generatePartitions(currentPartition, attrIndex, "all", fileNameStart);
                         List <Node> children = new ArrayList<Node>();
                         currNode.setChildren(children); /** set children in the current root node */
 
@@ -207,7 +304,7 @@ public class See5 {
                          * for next level if we get through all partitions cleanly. That is
                          * if none of them are too small.
                          */
-                        List<File> currSplitPartitions = new ArrayList<File>();
+                        List <Partition> currSplitPartitions = new ArrayList<Partition>();
                         Node [] currSplitNodes = new Node [partitions.size()];
                         boolean nullSplit = false; //so we can check at the end of the loop if we generated a null split
                         /** create nodes in the decision tree for each partition
@@ -219,8 +316,7 @@ public class See5 {
                         for(int currPart=0; currPart<partitions.size(); currPart++)
                         {
                             /* read current partition from file */
-                            File cFile = partitions.get(currPart);
-                            Dataset currDataset = fileManager.readDatasetFromFile(cFile);
+                            Dataset currDataset = partitions.get(currPart).read();
                             //Dataset currDataset = partitions[currPart];
                             //System.out.println("currSplit: " + splitInd+ "  currPart: " + currPart + " level: " + level+
                             //        " numRec: " + currDataset.getNumRecords());
@@ -275,7 +371,7 @@ public class See5 {
                          * generate the partitions of the dataset
                          */
                         String fileNameStart = level + "-" + splitInd+"-";
-                        List<File> partitions = currentPartition.generateDatasetPartitionsToFile(attrIndex, splitValue, fileNameStart);
+                        List <Partition> partitions = generatePartitions(currentPartition, attrIndex, splitValue, fileNameStart);
                         List <Node> children = new ArrayList<Node>();
                         currNode.setChildren(children); /** set children in the passed parent node */
 
@@ -283,7 +379,7 @@ public class See5 {
                          * for next level if we get through all partitions cleanly. That is
                          * if none of them are too small.
                          */
-                        List<File> currSplitPartitions = new ArrayList<File>();
+                        List <Partition> currSplitPartitions = new ArrayList<Partition>();
                         Node [] currSplitNodes = new Node [partitions.size()];
                         boolean nullSplit = false; //so we can check at the end of the loop if we generated a null split
 
@@ -297,8 +393,7 @@ public class See5 {
                         for(int currPart=0; currPart<partitions.size(); currPart++)
                         {
                             /* read current partition from file */
-                            File cFile = partitions.get(currPart);
-                            Dataset currDataset = fileManager.readDatasetFromFile(cFile);
+                            Dataset currDataset = partitions.get(currPart).read();
                             //Dataset currDataset = partitions[currPart];
                             //System.out.println("N  currPart: " + currPart + " level: "
                             //        + level+" numRec: " + currDataset.getNumRecords());
@@ -13,8 +13,10 @@
 package kdmi;
 import SysFor.*;
 import java.io.*;
-import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 
@@ -25,14 +27,62 @@ import java.util.*;
  */
 public class kDMI {
 
-   /** the decision tree builder */
-    private DecisionTreeBuilder treeBuilder;
+   /** the decision tree of each attribute having missing values */
+    private DecisionTreeModel []treeModel;
+    /** 1->also write the logic rules of each tree to a file, for debugging */
+    private int dumpTreeFiles=0;
+    /** no. of threads used to build the decision trees and to impute in snapshot mode */
+    private int noOfThreads=Runtime.getRuntime().availableProcessors();
+    /** 1->impute records in parallel against a snapshot of the data set, 0->one by one in place */
+    private int snapshotImpute=0;
+    /** max. no. of EM fits cached during imputation, 0->no cache */
+    private int emCacheSize=0;
+    /** a leaf is searched with an index if it has this many records and more */
+    private static final int INDEX_MIN_ROWS=256;
+    /** ... and the largest k tried is less than 1/INDEX_FRACTION of them */
+    private static final int INDEX_FRACTION=8;
+    /** max. no. of distances computed in one batch, see snapshotRecordImpute */
+    private static final int BATCH_DISTANCES=1<<22;
+    /** largest k tried when searching for the best k of a record, 0->no limit */
+    private int maxNeighbours=0;
+    /** search index of each leaf of a tree, built when first needed */
+    private NeighbourIndex [][]neighbourIndex;
+    /** search index of the whole data set, built when first needed */
+    private NeighbourIndex datasetIndex;
+    /** max. no. of records measured by an approximate neighbour search, 0->exact search */
+    private int approxRows=0;
+    /** one in RECALL_SAMPLE approximate searches is checked against the exact search */
+    private static final int RECALL_SAMPLE=16;
+    private long approxSearches;  //no. of approximate searches
+    private long recallSearches;  //no. of them checked against the exact search
+    private double recallSum;  //sum of the recall of the checked searches
+    /** the rows of the data set packed for distances, null if too large to pack */
+    private DistanceKernel distanceKernel;
+    /** no. of records written to the output file by the last run, -1 if it was not written */
+    private long rowsWritten=-1;
+    private EMFitCache emCache;
+    /** seed of the cached EM runs of the last run, see runCachedEMI */
+    private long emCacheSeed;
+    /** when the EM runs of imputation stop */
+    private EMConvergence emConvergence=new EMConvergence();
+    /** 1->findBestkNN compares the k by a regression instead of EM, see setFastBestK */
+    private int fastBestK=0;
+    /** seed of the EM residuals, used if emSeeded==1 */
+    private long emSeed;
+    private int emSeeded=0;
+    /** 1->EM imputes by the conditional mean only, without residuals */
+    private int emConditionalMean=0;
+    private long emRuns;  //no. of EM runs of the last run
+    private long emIterations;  //their total no. of iterations
+    private long emCapped;  //no. of them stopped at the max. no. of iterations
    
     private String gfileDataFileIn;//contains users data file name
     private String gattrInfo; //the attribute information file, used to generate name files
     private String [] attrNames; //contain attributes name
     private String [] attrType; // "n"->numerical, "c"->categorical
     private int [] attrNType; // 1->numerical, 0->categorical, 2->class (categorical)
+    private int [] numAttrs; //positions of the numerical attributes, the columns of an EMI
+    private int [] numIndex; //column of an attribute in an EMI, -1->categorical
     private String []treeFile;//contains tree file names
     private int noOfTree;//contains no. of tree created for the dataset
     int []leafLength;//contains file name for each leaf
@@ -45,15 +95,13 @@ public class kDMI {
     private String [] fStr; //contains format string of each numerical attr
     private String []tempFileList;
     private int tempTotalFile;
-    private int [][][]LeafRecords;  //Records belong to each leaf
-    private int [][]SizeOfEachLeaf;  //No. of records belong to each leaf
+    private LeafIndex []leafIndex;  //Records belong to each leaf of a tree
     private int [][]RL;  //contains a leaf id where a record belongs to.
     private int [][]FlgImpStatus;  //0->no imp required, 1->imp require but not not done, 2->imp done!
     private String [][]logicRule;//contains logic rules for each leaf of a tree
-    private String [][]MajorityVal;//contains masority value of an attribute based on a leaf, tree
-    private String [][]dataset;//data set
+    private int [][]MajorityVal;//contains code of the masority value of an attribute based on a leaf, tree
+    private DataTable dataset;//data set, parsed once in initialize
     private int []MR;  //Missing records, 0->no missing, 1->Missing
-    private int [][]MV;  //Missing values, 0->no missing, 1->Missing
     private int [][]RecClassify;  //-2->no DT, -1->not classify missing,0>= ->classified and leaf id
     private String [][]datasetNormalized;//
      /*
@@ -69,56 +117,218 @@ public class kDMI {
         initialize(attrFile,dataFile);
 
         FileManager fileManager=new FileManager();
-        String dataDc = fileManager.changedFileName(dataFile, "_DC");
-        tempFileList[tempTotalFile]=dataDc;tempTotalFile++;
-        String dataDi = fileManager.changedFileName(dataFile, "_DI");
-        tempFileList[tempTotalFile]=dataDi;tempTotalFile++;
-        fileManager.divideDataset(new File(dataFile),dataDc, dataDi);
-        gfileDataFileIn=dataDc;//assign data file name
-
         CreateDTs();  //buld dt
         recordClassify(); //classify records
 
         recordImpute(); //impute records
-        arrayToFile(dataset, noOfRecords, noOfAttrs, outputFile); //write to output file
+        arrayToFile(dataset, outputFile); //write to output file
         
-        //remove tmp and tree files
+        //remove tmp files, dumped tree files are kept
         fileManager.removeListOfFiles(tempFileList, tempTotalFile);
-        fileManager.removeListOfFiles(treeFile, noOfTree);
 
     }
 
 /*
- * this method is used to write an array into a file
- *
+ * this method sets whether the logic rules of each tree are also written to
+ * a file (<data file>_<attr>_DT), the trees themselves are always kept in memory
+ * @param dump 1->write rule files, 0->no files
  */
+public void setDumpTreeFiles(int dump)
+{
+    dumpTreeFiles=dump;
+}
 
-private void arrayToFile(String [][]data, int totRec, int totAttr,String outF)
+/*
+ * this method sets the no. of threads used to build the decision trees, to
+ * impute records in snapshot mode and, imputing in place, to run EM on large
+ * sets of records (see mviNewEMI.setNoOfThreads), by default one per
+ * available processor
+ * @param threads no. of threads, 1->build the trees one after another
+ */
+public void setNoOfThreads(int threads)
 {
-        FileManager fileManager=new FileManager();
-        File outFile=new File(outF);
+    noOfThreads=Math.max(1, threads);
+}
 
-        for(int i=0;i<totRec;i++)
-        {
-           String rec="";
+/*
+ * this method sets how records are imputed. In place (the default), records are
+ * imputed one by one and a record sees the values imputed for the records
+ * before it, which reproduces the original output. In snapshot mode, records
+ * are imputed in parallel, every record sees the data set as it was before
+ * imputation, and the imputed values are written back once all are done.
+ * @param snapshot 1->snapshot mode, 0->in place
+ */
+public void setSnapshotImpute(int snapshot)
+{
+    snapshotImpute=snapshot;
+}
 
-           for(int j=0;j<totAttr;j++)
-           {
-                if(attrNType[j]==1 && isMissing(data[i][j])==0)
+/*
+ * this method sets the size of the EM fit cache. With a cache, EM runs on the
+ * records of a record and its neighbours in the order of their ids, with
+ * residuals seeded by the records and their values, and the record is imputed
+ * by the conditional expectation under the fit EM ends with. The fit does not
+ * depend on which record ran EM, so a record whose neighbours and itself are
+ * the same records with the same values as those of a record imputed before
+ * (same tree and leaf) is imputed by the cached fit instead of running EM
+ * again, with the same result. A fit is only used while the values of its
+ * records are unchanged, so imputing in place, where imputed values are
+ * written back record by record, few fits are used again; in snapshot mode
+ * the values do not change and records that are each other's neighbours
+ * share a fit. No cache by default.
+ * @param size max. no. of fits kept, least recently used first out; 0->no cache
+ */
+public void setEMCacheSize(int size)
+{
+    emCacheSize=Math.max(0, size);
+}
+
+/*
+ * this method sets when the EM runs of imputation stop: once the mean vector
+ * and covariance matrix change by no more than a relative tolerance, or after
+ * a max. no. of iterations (see EMConvergence). If runs stopped at the max.
+ * without converging, how many is logged as a warning at the end of a run.
+ * @param convergence the convergence test and iteration budget
+ */
+public void setEMConvergence(EMConvergence convergence)
+{
+    emConvergence=convergence;
+}
+
+/*
+ * this method makes the random residuals EM adds in its first iteration
+ * repeatable: every EM run starts from the seed (see mviNewEMI.setSeed), so
+ * a run of kDMI with the same seed and data gives the same output
+ * @param seed the seed
+ */
+public void setEMSeed(long seed)
+{
+    emSeed=seed;
+    emSeeded=1;
+}
+
+/*
+ * this method sets whether EM adds random residuals to the imputed values in
+ * its first iteration (the default) or imputes by the conditional mean only,
+ * which is deterministic and faster (see mviNewEMI.setConditionalMean)
+ * @param meanOnly 1->conditional mean only, 0->with residuals
+ */
+public void setEMConditionalMean(int meanOnly)
+{
+    emConditionalMean=meanOnly;
+}
+
+/*
+ * this method sets how the k of a record are compared when searching for its
+ * best k. By default EM is run on the k nearest records and the record with a
+ * known numerical value held out, for every k tried. Fast, the held out value
+ * is predicted by its conditional mean given the record's other numerical
+ * values, under the mean and covariance of the k nearest records that have
+ * all of them (see ConditionalMeanProbe), kept up to date as k grows. Trying
+ * all k then costs about as much as one EM run. The best k found may differ,
+ * as EM also uses the records with missing values.
+ * @param fast 1->by regression, 0->by EM
+ */
+public void setFastBestK(int fast)
+{
+    fastBestK=fast;
+}
+
+/*
+ * this method limits the no. of neighbours tried when searching for the best
+ * k of a record. The k tried are sqrt(N), 2sqrt(N), ... for a leaf of N
+ * records, up to N by default. With a limit, only the nearest records of a
+ * large leaf are needed, and they are found with a search index of the leaf
+ * (see NeighbourIndex) instead of measuring the distance to every record.
+ * @param max largest k tried, at least sqrt(N); 0->no limit
+ */
+public void setMaxNeighbours(int max)
+{
+    maxNeighbours=Math.max(0, max);
+}
+
+/*
+ * this method makes the neighbour search of large leaves approximate, for
+ * speed. Where the search index of setMaxNeighbours would be used, the index
+ * is searched nearest node first and the search stops once maxRows records
+ * were measured, so some of the nearest records may be missed. A larger
+ * maxRows finds more of them but searches slower. One in 16 searches is also
+ * done exactly to measure the recall (the share of the nearest records
+ * found), see getApproximateRecall.
+ * @param maxRows records measured per search, at least the largest k; 0->exact
+ * search (the default)
+ */
+public void setApproximateNeighbours(int maxRows)
+{
+    approxRows=Math.max(0, maxRows);
+}
+
+/*
+ * returns the mean recall of the approximate neighbour searches of the last
+ * run that were checked against the exact search, NaN if none was checked
+ */
+public synchronized double getApproximateRecall()
+{
+    if(recallSearches==0) return Double.NaN;
+    return recallSum/recallSearches;
+}
+
+/*
+ * returns the EM fit cache of the last run with its hit counters, null if no
+ * cache was used
+ */
+public EMFitCache getEMCache()
+{
+    return emCache;
+}
+
+/*
+ * returns the no. of records of the data set of the last run
+ */
+public int getNoOfRecords()
+{
+    return noOfRecords;
+}
+
+/*
+ * returns the no. of records written to the output file by the last run,
+ * -1 if the output file could not be written
+ */
+public long getRowsWritten()
+{
+    return rowsWritten;
+}
+
+/*
+ * this method is used to write the data set into a file, numerical values are
+ * written with the format of their attribute (fStr)
+ */
+
+private void arrayToFile(DataTable data, String outF)
+{
+        rowsWritten=-1;
+        try
+        {
+            DataWriter writer=new DataWriter(new File(outF));
+            try
+            {
+                writer.setNumberFormats(attrNType, fStr);
+                for(int i=0;i<data.getNoOfRecords();i++)
                 {
-                    DecimalFormat df = new DecimalFormat(fStr[j]);
-                    rec=rec+df.format(Double.parseDouble(data[i][j]))+", ";
-                }
-                else{
-                    rec=rec+data[i][j]+", ";
+                    writer.writeRow(data, i);
                 }
-           }
-           if(i<totRec-1)
-               rec=rec+"\n";
-           if(i==0)
-               fileManager.writeToFile(outFile, rec);
-           else
-               fileManager.appendToFile(outFile, rec);
+            }
+            finally
+            {
+                writer.close();
+            }
+            rowsWritten=writer.getRows();
+            Logger.getLogger(kDMI.class.getName()).log(Level.FINE, writer.getReport());
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(kDMI.class.getName()).log(Level.WARNING,
+                    "Error: IO Exception occured " + ex);
         }
 }
     
@@ -133,16 +343,15 @@ public void initialize(String attrFile, String dataFile)
         
         FileManager fileManager=new FileManager();
         String [][]tmpAty=fileManager.readFileAs2DArray(new File(attrFile));
-        dataset=fileManager.readFileAs2DArray(new File(dataFile));
-        noOfRecords=dataset.length;
-        noOfAttrs=dataset[0].length;
+        String [][]data=fileManager.readFileAs2DArray(new File(dataFile));
+        noOfRecords=data.length;
+        noOfAttrs=data[0].length;
         attrNType=new int[noOfAttrs];
         attrType=new String[noOfAttrs];
         attrNames=new String[noOfAttrs];
         missingAttrs=new int[noOfAttrs];
         RecClassify=new int[noOfRecords][noOfAttrs];
         MR=new int[noOfRecords];
-        MV=new int[noOfRecords][noOfAttrs];
 
         int totmis=0;
         for(int j=0;j<noOfAttrs;j++)
@@ -154,14 +363,10 @@ public void initialize(String attrFile, String dataFile)
             MR[i]=0;
             for(int j=0;j<noOfAttrs;j++)
             {
-                if(isMissing(dataset[i][j])==1)
+                if(isMissing(data[i][j])==1)
                 {
-                    MV[i][j]=1;MR[i]=1;totmis++;missingAttrs[j]=1;
+                    MR[i]=1;totmis++;missingAttrs[j]=1;
                 }
-                else
-                {
-                    MV[i][j]=0;
-                 }
             }
         }
         noOfMissingAttrs=0;
@@ -186,7 +391,19 @@ public void initialize(String attrFile, String dataFile)
                  attrNType[i]=0;
              }
          }
-        int []mDecP=fileManager.attrMaxDecimalPlaces(attrNType,dataset);
+        int noOfNumAttrs=0;
+        numIndex=new int[noOfAttrs];
+        for(int i=0; i<noOfAttrs;i++)
+         {
+            numIndex[i]=attrNType[i]==1?noOfNumAttrs++:-1;
+         }
+        numAttrs=new int[noOfNumAttrs];
+        for(int i=0; i<noOfAttrs;i++)
+         {
+            if(numIndex[i]>=0) numAttrs[numIndex[i]]=i;
+         }
+        int []mDecP=fileManager.attrMaxDecimalPlaces(attrNType,data);
+        dataset=new DataTable(data,attrNType);
         fStr=new String[noOfAttrs];
         for (int c=0;c<noOfAttrs;c++)
         {
@@ -213,46 +430,24 @@ public void initialize(String attrFile, String dataFile)
 
 /*
  * The method builds DT for each attrinbute having missing values.
+ * Trees are built in memory from the complete records of the data set.
+ * Tree indices follow the attribute order, the trees themselves are built
+ * in parallel (see setNoOfThreads).
  */
 private void CreateDTs()
 {
     FileManager fileManager = new FileManager();
     noOfTree=0;
     treeFile=new String[noOfMissingAttrs];
+    treeModel=new DecisionTreeModel[noOfMissingAttrs];
     missingAttrsTree=new int[noOfAttrs];
     leafLength=new int[noOfMissingAttrs];
     TreeAttrs=new int[noOfAttrs];
-    String tmpDataF= fileManager.changedFileName(gfileDataFileIn, "_tmp");
-    tempFileList[tempTotalFile]=tmpDataF;tempTotalFile++;
-    String nameFile_DT= fileManager.changedFileName(gfileDataFileIn, "_tmpName");
-    tempFileList[tempTotalFile]=nameFile_DT;tempTotalFile++;
-    String tmpAttrF= fileManager.changedFileName(gattrInfo, "_tmp");
-    tempFileList[tempTotalFile]=tmpAttrF;tempTotalFile++;
-    
+
     for(int i=0;i<noOfAttrs;i++)
         {
             if(missingAttrs[i]==1)//1=missing, 0=no missing
             {
-                if(attrType[i].equals("n"))
-                {
-                 //generalize
-                    generalise(gfileDataFileIn, tmpDataF, i,noOfAttrs);
-                }
-                else
-                {
-                    fileManager.copyFile(gfileDataFileIn, tmpDataF);
-                }
-                setClassAttribute(gattrInfo, tmpAttrF, i,noOfAttrs);
-                String gtest=fileManager.extractNameFileFromDataFile(new File(tmpAttrF),
-            new File(tmpDataF),new File(nameFile_DT));
-               //creating decision tree
-               String nameFile_out= fileManager.changedFileName(gfileDataFileIn, "_"+attrNames[i]+"_DT");
-               treeBuilder = new DecisionTreeBuilder(nameFile_DT,
-                       tmpDataF, nameFile_out, DecisionTreeBuilder.SEE5);
-
-               treeBuilder.createDecisionTree();
-               treeFile[noOfTree]= nameFile_out;
-               leafLength[noOfTree]=noOfRules(nameFile_out);
                missingAttrsTree[i]=noOfTree;
                TreeAttrs[noOfTree]=i;
                noOfTree++;
@@ -261,42 +456,162 @@ private void CreateDTs()
                 missingAttrsTree[i]=-2;
               }
         }
+    //creating decision trees
+    buildTreeModels(findCompleteRecords());
+    for(int t=0;t<noOfTree;t++)
+        {
+           if(dumpTreeFiles==1)
+           {
+               String nameFile_out= fileManager.changedFileName(gfileDataFileIn, "_"+attrNames[TreeAttrs[t]]+"_DT");
+               fileManager.writeToFile(new File(nameFile_out), treeModel[t].toString());
+               treeFile[t]= nameFile_out;
+           }
+           leafLength[t]=treeModel[t].getNumberOfRules();
+        }
+
+}
+
+/*
+ * builds treeModel[t] for the attribute TreeAttrs[t] of each tree t, one task
+ * per tree on a pool of noOfThreads threads. Each task only reads the shared
+ * complete records, so the trees do not depend on the order tasks finish in.
+ */
+private void buildTreeModels(final String [][]completeRecords)
+{
+    int threads=Math.min(noOfThreads, noOfTree);
+    if(threads<=1)
+    {
+        for(int t=0;t<noOfTree;t++)
+        {
+            treeModel[t]=buildTreeModel(completeRecords, TreeAttrs[t]);
+        }
+        return;
+    }
+    ExecutorService pool=Executors.newFixedThreadPool(threads);
+    try
+    {
+        List<Future<DecisionTreeModel>> trees=new ArrayList<Future<DecisionTreeModel>>();
+        for(int t=0;t<noOfTree;t++)
+        {
+            final int attrPos=TreeAttrs[t];
+            trees.add(pool.submit(new Callable<DecisionTreeModel>() {
+                public DecisionTreeModel call()
+                {
+                    return buildTreeModel(completeRecords, attrPos);
+                }
+            }));
+        }
+        for(int t=0;t<noOfTree;t++)
+        {
+            treeModel[t]=trees.get(t).get();
+        }
+    }
+    catch(InterruptedException ex)
+    {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(ex);
+    }
+    catch(ExecutionException ex)
+    {
+        throw new RuntimeException(ex.getCause());
+    }
+    finally
+    {
+        pool.shutdownNow();
+    }
+}
+
+/*
+ * builds the decision tree of an attribute (attrPos) from the complete records.
+ * The attribute is used as the class attribute, numerical attributes are
+ * generalised first.
+ */
+private DecisionTreeModel buildTreeModel(String [][]completeRecords, int attrPos)
+{
+    String [][]records=completeRecords;
+    if(attrType[attrPos].equals("n"))
+    {
+        //generalize a copy, the other attributes share their values
+        records=new String[completeRecords.length][];
+        for(int r=0;r<completeRecords.length;r++)
+        {
+            records[r]=completeRecords[r].clone();
+        }
+        generaliseAttribute(records, attrPos);
+    }
+    int []dtAttrType=new int[noOfAttrs];
+    for(int j=0;j<noOfAttrs;j++)
+    {
+        dtAttrType[j]=attrNType[j];
+    }
+    dtAttrType[attrPos]=2;
+    FileManager fileManager = new FileManager();
+    String []nameFile=fileManager.createNameFile(dtAttrType, attrNames, records);
+    DecisionTreeBuilder treeBuilder = new DecisionTreeBuilder(new Dataset(nameFile, records),
+            DecisionTreeBuilder.SEE5);
+    return treeBuilder.buildDecisionTreeModel();
+}
 
+/*
+ * finds the records without any missing value ('?'), the same
+ * records FileManager.divideDataset writes to the _DC file
+ */
+private String [][] findCompleteRecords()
+{
+    int []complete=new int[noOfRecords];
+    int totComplete=0;
+    for(int i=0;i<noOfRecords;i++)
+    {
+        complete[i]=1;
+        for(int j=0;j<noOfAttrs;j++)
+        {
+            //only text values and missing numerical values can hold a '?'
+            if((attrNType[j]!=1 || dataset.isMissing(i,j)==1)
+                    && dataset.getText(i,j).indexOf("?")>=0)
+            {
+                complete[i]=0;break;
+            }
+        }
+        if(complete[i]==1)totComplete++;
+    }
+    String [][]records=new String[totComplete][];
+    for(int i=0,r=0;i<noOfRecords;i++)
+    {
+        if(complete[i]==1)
+        {
+            records[r]=dataset.getRow(i);r++;
+        }
+    }
+    return records;
 }
 
 /*
  * finds best subset of record having missing values within a leaf
  */
-private int[] findBestkNN(int rec, int []leafR)
+private int[] findBestkNN(RecordView v, int []leafR, int t, int l)
 {
+    int rec=v.getRecord();
+    int []recMV=v.getMissingFlags();
     int N=leafR.length;
-    String [][]tmpData=new String [N][noOfAttrs];
-    int [][]MV1=new int [N][noOfAttrs];
-    int []MR1=new int [N];
-    int totMiss=0;
     
     int kk=N;
     int []bestRec=new int[N];
     double rmse=Double.POSITIVE_INFINITY;
+    int []preset=v.takeRanking(t,l);
     kNN_ary knn=new kNN_ary();
-    mviNewEMI nemi=new mviNewEMI();
-    //create arrays for the new EMI
+    knn.setDistanceKernel(distanceKernel);
+    mviNewEMI nemi=newEMI();
     int cRow=-1;
     for(int i=0;i<N;i++)
     {
-        int tmprec=leafR[i];
-        for(int j=0;j<noOfAttrs;j++)
-        {
-            tmpData[i][j]=dataset[tmprec][j];
-        }
-        if(rec==tmprec)cRow=i;
+        if(rec==leafR[i])cRow=i;
     }
 
     int mPos=-1;
 
     for(int j=0;j<noOfAttrs;j++)
     {
-        if(attrNType[j]==1 && MV[rec][j]==0)
+        if(attrNType[j]==1 && recMV[j]==0)
         {
             mPos=j;
 
@@ -306,7 +621,7 @@ private int[] findBestkNN(int rec, int []leafR)
     double oval;
     if(mPos>=0)
     {
-        oval=Double.parseDouble(dataset[rec][mPos]);
+        oval=v.getNumber(rec,mPos);
         int inv=1,iv=2;
         if(N>5)
         {
@@ -314,46 +629,74 @@ private int[] findBestkNN(int rec, int []leafR)
             iv=inv;
         }
 
-        for(int k=iv;k<N;k+=inv)
+        //rank the leaf once up to the largest k tried, the k nearest
+        //neighbours are the first k of the ranking. Imputing in place with no
+        //option set, the distances are computed once and each k keeps the
+        //neighbours of a scan in leaf order (kNN_ary.scanNeighbours), in the
+        //order the scan keeps them
+        int maxK=largestK(N);
+        int []krec=null;
+        double []dist=null;
+        if(preset!=null)
+            krec=preset;
+        else if(snapshotImpute!=1 && fastBestK==0 && !useNeighbourIndex(N,maxK))
+            dist=knn.distances(attrNType, v, leafR, cRow);
+        else if(useNeighbourIndex(N,maxK) && approxRows>0)
+            krec=approximateNeighbours(knn, v, t, l, leafR, cRow, maxK);
+        else if(useNeighbourIndex(N,maxK))
+            krec=knn.rankNeighbours(attrNType, v, getNeighbourIndex(t,l,leafR), cRow, maxK);
+        else
+            krec=knn.rankNeighbours(attrNType, v, leafR, cRow, maxK);
+        ConditionalMeanProbe probe=null;
+        double []px=null;  //the values the probe predicts from
+        if(fastBestK==1)
         {
-            int []krec=new int[k];
-            krec=knn.runkNN(attrNType, dataset[rec], tmpData, k, cRow);
-            String [][]kData=new String[k+1][noOfAttrs];
-            int [][]MVk=new int[k+1][noOfAttrs];
-            int []MRk=new int[k+1];
-            int tmiss=0;
-            for(int i=0;i<k;i++)
+            int np=0;
+            for(int j=0;j<noOfAttrs;j++)
             {
-                int tmprec=leafR[krec[i]];
-                for(int j=0;j<noOfAttrs;j++)
+                if(isPredictor(v,j,mPos)) np++;
+            }
+            int []pred=new int[np];
+            px=new double[np];
+            for(int j=0,c=0;j<noOfAttrs;j++)
+            {
+                if(isPredictor(v,j,mPos))
                 {
-                    kData[i][j]=dataset[tmprec][j];
-                    MVk[i][j]=MV[tmprec][j];
-                    if(MVk[i][j]==1)
-                    {
-                       totMiss++;
-                    }
+                    pred[c]=j;
+                    px[c++]=v.getNumber(rec,j);
                 }
-                MRk[i]=MR[tmprec];
             }
-            for(int j=0;j<noOfAttrs;j++)
+            probe=new ConditionalMeanProbe(pred, mPos);
+        }
+        int added=0;  //neighbours added to the probe
+        for(int k=iv;k<=maxK;k+=inv)
+        {
+            double ival;
+            if(dist!=null) krec=kNN_ary.scanNeighbours(dist, cRow, k);
+            if(probe!=null)
             {
-                kData[k][j]=dataset[rec][j];
-                MVk[k][j]=MV[rec][j];
-                if(MVk[k][j]==1)
-                    {
-                       totMiss++;
-                    }
+                for(;added<k;added++) probe.add(v, leafR[krec[added]]);
+                ival=probe.predict(px);
             }
-            kData[k][mPos]="?"; totMiss++;MVk[k][mPos]=1;
-            MRk[k]=MR[rec];
+            else
+            {
+                double [][]kData=new double[k+1][numAttrs.length];
+                long [][]MVk=new long[k+1][(numAttrs.length+63)>>>6];
+                for(int i=0;i<k;i++)
+                {
+                    copyRecord(v,leafR[krec[i]],kData[i],MVk[i]);
+                }
+                copyRecord(v,rec,kData[k],MVk[k]);
+                int mk=numIndex[mPos];
+                kData[k][mk]=Double.NaN; MVk[k][mk>>>6]|=1L<<mk;
 
-            //call new EMI to impute
-            nemi.runNewEMI(kData, MVk,MRk, attrNType,totMiss, 0,0);
-            double ival=0.0;
-            if(isMissing(kData[k][mPos])==0)
+                //call new EMI to impute
+                nemi.runNewEMI(kData, MVk, kData);
+                countEMRun(nemi);
+                ival=kData[k][mk];
+            }
+            if(!Double.isNaN(ival))
             {
-                ival=Double.parseDouble(kData[k][mPos]);
                 double nrmse=Math.pow((ival-oval),2.0);
                 nrmse=Math.sqrt(nrmse);
 
@@ -387,12 +730,64 @@ private int[] findBestkNN(int rec, int []leafR)
    return  bestSubset;
 }
 
+/*
+ * returns true if attribute j of the record of a view is a predictor of the
+ * held out attribute mPos in findBestkNN: a numerical value the record has
+ */
+private boolean isPredictor(RecordView v, int j, int mPos)
+{
+    return j!=mPos && attrNType[j]==1 && v.getMissingFlags()[j]==0
+            && !Double.isNaN(v.getNumber(v.getRecord(),j));
+}
+
+/*
+ * returns the largest k tried by findBestkNN for a leaf of N records; the k
+ * tried are iv, iv+inv, ... up to it
+ */
+private int largestK(int N)
+{
+    int inv=1,iv=2;
+    if(N>5)
+    {
+        inv=(int)Math.sqrt((double)N);
+        iv=inv;
+    }
+    int maxK=iv<N?iv+(N-1-iv)/inv*inv:0;
+    if(maxNeighbours>0 && maxK>maxNeighbours)
+        maxK=Math.max(iv, iv+(maxNeighbours-iv)/inv*inv);
+    return maxK;
+}
+
+/*
+ * returns true if a leaf of N records is searched with an index for its maxK
+ * nearest records, rather than ranking all of them
+ */
+private boolean useNeighbourIndex(int N, int maxK)
+{
+    return N>=INDEX_MIN_ROWS && (long)maxK*INDEX_FRACTION<N;
+}
+
+/*
+ * copies the numerical values (NaN->missing) of a row to the columns of the
+ * EMI (numAttrs), and sets the bits of the missing ones in a missing mask
+ */
+private void copyRecord(RecordView v, int row, double []values, long []missing)
+{
+    int rec=v.getRecord();
+    for(int k=0;k<numAttrs.length;k++)
+    {
+        int j=numAttrs[k];
+        values[k]=v.getNumber(row,j);
+        int flag=row==rec?v.getMissingFlags()[j]:v.isMissing(row,j);
+        if(flag==1) missing[k>>>6]|=1L<<k;
+    }
+}
+
 
 
 //the method finds the records belong to each leaf
 private void recordClassify()
 {
-    FileManager fileManager = new FileManager();
     if(noOfTree>0)
     {
         int maxLeaf=0;
@@ -401,12 +796,11 @@ private void recordClassify()
         {
             if(leafLength[t]>maxLeaf)maxLeaf=leafLength[t];
         }
-        LeafRecords=new int[noOfTree][maxLeaf][noOfRecords];//Records belong to each leaf
-        SizeOfEachLeaf=new int[noOfTree][maxLeaf];  //No. of records belong to each leaf
+        leafIndex=new LeafIndex[noOfTree];//Records belong to each leaf
         FlgImpStatus=new int[noOfTree][maxLeaf];
         RL=new int[noOfTree][noOfRecords];
         logicRule=new String[noOfTree][maxLeaf];
-        MajorityVal=new String[noOfTree][maxLeaf];
+        MajorityVal=new int[noOfTree][maxLeaf];
         for(int t=0;t<noOfTree;t++)
         {
            if(leafLength[t]>0)
@@ -415,23 +809,33 @@ private void recordClassify()
            for (int i=0;i<noOfAttrs;i++)
                    atype[i]=attrNType[i];
            atype[TreeAttrs[t]]=2;
-           String []tmpRules = fileManager.readFileAsArray(new File(treeFile[t]));
            for(int l=0;l<leafLength[t];l++)
            {
-                 logicRule[t][l]=tmpRules[l+1];
+                 logicRule[t][l]=treeModel[t].getRule(l);
                  if (attrNType[TreeAttrs[t]]!=1)
                  {
-                     MajorityVal[t][l]=findMajorityClassValues(atype,noOfAttrs,logicRule[t][l]);
+                     MajorityVal[t][l]=dataset.addCode(TreeAttrs[t],
+                             findMajorityClassValues(atype,noOfAttrs,logicRule[t][l]));
                  }
-                 SizeOfEachLeaf[t][l] = 0;
                  FlgImpStatus[t][l]=0;
             }
           }
         }
 
-        for(int j=0;j<noOfAttrs;j++)
+        //compile the rules once against the codes of the data set
+        LogicRuleSet []ruleSet=new LogicRuleSet[noOfTree];
+        for(int t=0;t<noOfTree;t++)
+        {
+           int atype[]=new int[noOfAttrs];
+           for (int c=0;c<noOfAttrs;c++)
+                   atype[c]=attrNType[c];
+           atype[TreeAttrs[t]]=2;
+           ruleSet[t]=new LogicRuleSet(logicRule[t],leafLength[t],atype,dataset);
+        }
+
+        for(int i=0;i<noOfRecords;i++)
         {
-             for(int i=0;i<noOfRecords;i++)
+            for(int j=0;j<noOfAttrs;j++)
             {
                 if(missingAttrsTree[j]==-2)
                 {
@@ -440,16 +844,11 @@ private void recordClassify()
                 else
                 {
                     int t=missingAttrsTree[j];
-                    int atype[]=new int[noOfAttrs];
-                    for (int c=0;c<noOfAttrs;c++)
-                           atype[c]=attrNType[c];
-                    atype[TreeAttrs[t]]=2;
-                    int leafId=FindLeafId(dataset[i],atype,noOfAttrs,logicRule[t],leafLength[t]);
+                    int leafId=ruleSet[t].findLeaf(dataset,i);
                     RL[t][i]=leafId;
                     if(leafId>=0)
                     {
                         RecClassify[i][j]=leafId;
-                        LeafRecords[t][leafId][SizeOfEachLeaf[t][leafId]]=i;
                         if(MR[i]==1)
                         {
                             if (attrNType[TreeAttrs[t]]==1)
@@ -457,8 +856,6 @@ private void recordClassify()
                                 FlgImpStatus[t][leafId] = 1;
                             }
                         }
-
-                        SizeOfEachLeaf[t][leafId]++;
                     }
                     else
                     {
@@ -466,7 +863,10 @@ private void recordClassify()
                     }
                 }
             }
-             
+        }
+        for(int t=0;t<noOfTree;t++)
+        {
+            leafIndex[t]=new LeafIndex(RL[t],leafLength[t]);
         }
     }
 }
@@ -474,269 +874,596 @@ private void recordClassify()
 //Impute numerical missing values belonging to the leaves one by one using EMI
 private void recordImpute()
 {
-    mviNewEMI nemi=new mviNewEMI();
-    for(int g=0;g<noOfRecords;g++)
+    emCache=null;
+    if(emCacheSize>0) emCache=new EMFitCache(emCacheSize);
+    emCacheSeed=emSeeded==1?emSeed:new SplittableRandom().nextLong();
+    neighbourIndex=new NeighbourIndex[noOfTree][];
+    datasetIndex=null;
+    approxSearches=0;
+    recallSearches=0;
+    recallSum=0;
+    emRuns=0;
+    emIterations=0;
+    emCapped=0;
+    distanceKernel=null;
+    if((long)noOfRecords*noOfAttrs<Integer.MAX_VALUE)
+        distanceKernel=new DistanceKernel(dataset,attrNType);
+    if(snapshotImpute==1)
+    {
+        snapshotRecordImpute();
+    }
+    else
     {
-        if(MR[g]==1)
+        mviNewEMI nemi=newEMI();
+        for(int g=0;g<noOfRecords;g++)
         {
-//            System.out.println ("Imputing record= "+g);
-            for(int z=0;z<noOfAttrs;z++)
+            if(MR[g]==1)
             {
-                if(MV[g][z]==1)
-                {
-                    int flg=-1, flag=-1;
-                    int ct=0, cmt=0;
-                    if(RecClassify[g][z]<0)
-                    {
-                        flag=0;
-                        for(int s=0;s<noOfAttrs;s++)
-                        {
-                            if(RecClassify[g][s]>=0)
-                                {
-                                    ct++;
-                                    if(MV[g][s]==1)
-                                    {
-                                        cmt++;
-                                    }
-                                }
-                        }
-                        int ss=z+1;
-                        if(ct>0||cmt>0)
-                        {
-                            for(int s=0;s<noOfAttrs;s++)
-                            {
-                                if(ss==noOfAttrs) ss=0;
-                                if(ss!=z)
-                                {
-                                    if(RecClassify[g][ss]>=0)
-                                    {
-                                        if(cmt>0)
-                                        {
-                                            if(MV[g][ss]==1)
-                                            {
-                                                flg = ss;
-                                                break;
-                                            }
-                                        }
-                                        else
-                                        {
-                                            flg = ss;
-                                            break;
-                                        }
-
-                                    }
-                                }
-                                ss++;
-                            }
-                        }
-                        else
-                        {
-                            flag=1;
-                        }
-                    }
-                   int tl=noOfRecords;
-                   int t=-1, l=-1;
-                   if(flag==-1)
-                   {
-                      t=missingAttrsTree[z];
-                      l=RecClassify[g][z];
-                      tl=SizeOfEachLeaf[t][l];
+                imputeRecord(new RecordView(dataset,g,attrNType,1),nemi);
+                updateNeighbourIndexes(g);
+            }
+        }
+    }
+    if(emCache!=null)
+    {
+        Logger.getLogger(kDMI.class.getName()).log(Level.FINE, emCache.getReport());
+    }
+    if(emRuns>0)
+    {
+        Logger.getLogger(kDMI.class.getName()).log(Level.FINE, "EM: "+emRuns+" runs, "
+                +String.format("%.1f", (double)emIterations/emRuns)+" iterations per run, "
+                +emCapped+" stopped at "+emConvergence.getMaxIterations()+" iterations");
+    }
+    if(emCapped>0)
+    {
+        Logger.getLogger(kDMI.class.getName()).log(Level.WARNING, emCapped+" of "+emRuns
+                +" EM runs stopped at "+emConvergence.getMaxIterations()
+                +" iterations without converging, see setEMConvergence");
+    }
+    if(approxSearches>0)
+    {
+        Logger.getLogger(kDMI.class.getName()).log(Level.FINE, "Approximate neighbour search: "
+                +approxSearches+" searches, recall "+String.format("%.3f", getApproximateRecall())
+                +" over "+recallSearches+" checked");
+    }
+}
 
-                   }
-                   else if(flag ==0)
-                   {
-                      t=missingAttrsTree[flg];
-                      l=RecClassify[g][flg];
-                      tl=SizeOfEachLeaf[t][l];
-                   }
-                   int []leafR=new int[tl];
-                   if(flag<=0)
-                   {
-                      for(int m=0;m<tl;m++)
-                      {
-                          leafR[m]=LeafRecords[t][l][m];
-                      }
-                   }
-                   else 
-                   {
-                      for(int m=0;m<tl;m++)
-                      {
-                          leafR[m]=m;
-                      }
-                   }
+/*
+ * returns the search index of the records of leaf l of tree t, t=-1 for the
+ * whole data set (leafR)
+ */
+private synchronized NeighbourIndex getNeighbourIndex(int t, int l, int []leafR)
+{
+    if(t<0)
+    {
+        if(datasetIndex==null) datasetIndex=new NeighbourIndex(dataset,attrNType,leafR);
+        return datasetIndex;
+    }
+    if(neighbourIndex[t]==null) neighbourIndex[t]=new NeighbourIndex[leafLength[t]];
+    if(neighbourIndex[t][l]==null) neighbourIndex[t][l]=new NeighbourIndex(dataset,attrNType,leafR);
+    return neighbourIndex[t][l];
+}
 
-                   //best k
-                  int []bestNN= findBestkNN(g,leafR);
-                  int kk=bestNN.length;
-                  if(kk>0)
-                  {
-                   String [][]tmpData=new String [kk+1][noOfAttrs];
-                   int [][]MV1=new int [kk+1][noOfAttrs];
-                   int []MR1=new int [kk+1];
-                   int totMiss=0;
-                   for(int r=0;r<kk;r++)
-                   {
-                       for(int j=0;j<noOfAttrs;j++)
+/*
+ * ranks the maxK nearest records of a leaf approximately, and checks one in
+ * RECALL_SAMPLE searches against the exact ranking
+ */
+private int[] approximateNeighbours(kNN_ary knn, RecordView v, int t, int l,
+        int []leafR, int cRow, int maxK)
+{
+    NeighbourIndex index=getNeighbourIndex(t,l,leafR);
+    int []krec=knn.rankNeighbours(attrNType, v, index, cRow, maxK, approxRows);
+    long search;
+    synchronized(this)
+    {
+        search=approxSearches++;
+    }
+    if(search%RECALL_SAMPLE==0)
+    {
+        double recall=kNN_ary.recall(krec, knn.rankNeighbours(attrNType, v, index, cRow, maxK));
+        synchronized(this)
+        {
+            recallSearches++;
+            recallSum+=recall;
+        }
+    }
+    return krec;
+}
+
+/*
+ * widens the search indexes holding a record, and packs it again for
+ * distances, after values were imputed for it in place
+ */
+private void updateNeighbourIndexes(int g)
+{
+    for(int t=0;t<noOfTree;t++)
+    {
+        int l=RL[t][g];
+        if(l>=0 && neighbourIndex[t]!=null && neighbourIndex[t][l]!=null)
+            neighbourIndex[t][l].update(g);
+    }
+    if(datasetIndex!=null) datasetIndex.update(g);
+    if(distanceKernel!=null) distanceKernel.update(g);
+}
+
+/*
+ * Imputes all records on a fork/join pool. Each record is imputed on a private
+ * copy of its row while the other rows are read from the data set, which is not
+ * changed until all records are done, so the results do not depend on the order
+ * the records are scheduled in.
+ *
+ * The records whose first neighbour search is in the same leaf are imputed
+ * together, after ranking the leaf for all of them in one batch (see
+ * kNN_ary.rankNeighbours), at most BATCH_DISTANCES distances at a time.
+ */
+private void snapshotRecordImpute()
+{
+    int noOfMR=0;
+    for(int g=0;g<noOfRecords;g++)
+    {
+        if(MR[g]==1)noOfMR++;
+    }
+    RecordView []imputed=new RecordView[noOfMR];//imputed records
+    noOfMR=0;
+    for(int g=0;g<noOfRecords;g++)
+    {
+        if(MR[g]==1)imputed[noOfMR++]=new RecordView(dataset,g,attrNType,0);
+    }
+    ForkJoinPool pool=new ForkJoinPool(noOfThreads);
+    try
+    {
+        //group the records by the leaf of their first neighbour search
+        Map<Long,List<RecordView>> batches=new LinkedHashMap<Long,List<RecordView>>();
+        List<RecordView> rest=new ArrayList<RecordView>();
+        for(int i=0;i<noOfMR;i++)
+        {
+            int []leaf=firstSearchLeaf(imputed[i]);
+            if(leaf==null)
+            {
+                rest.add(imputed[i]);
+                continue;
+            }
+            Long key=((long)leaf[0]<<32)|(leaf[1]&0xffffffffL);
+            List<RecordView> batch=batches.get(key);
+            if(batch==null)
+            {
+                batch=new ArrayList<RecordView>();
+                batches.put(key, batch);
+            }
+            batch.add(imputed[i]);
+        }
+        kNN_ary knn=new kNN_ary();
+        knn.setDistanceKernel(distanceKernel);
+        for(Map.Entry<Long,List<RecordView>> e:batches.entrySet())
+        {
+            List<RecordView> batch=e.getValue();
+            int t=(int)(e.getKey()>>32), l=(int)(long)e.getKey();
+            int []leafR=getLeafRecords(t,l);
+            int N=leafR.length;
+            if(batch.size()<2 || useNeighbourIndex(N,largestK(N)))
+            {
+                rest.addAll(batch);
+                continue;
+            }
+            int size=Math.max(2, Math.min(batch.size(), BATCH_DISTANCES/N));
+            for(int b0=0;b0<batch.size();b0+=size)
+            {
+                RecordView []views=batch.subList(b0, Math.min(batch.size(), b0+size))
+                        .toArray(new RecordView[0]);
+                int []cRow=new int[views.length];
+                for(int q=0;q<views.length;q++)
+                {
+                    cRow[q]=Arrays.binarySearch(leafR, views[q].getRecord());
+                    if(cRow[q]<0) cRow[q]=-1;
+                }
+                int [][]ranked=knn.rankNeighbours(attrNType, views, cRow, leafR, largestK(N), pool);
+                for(int q=0;q<views.length;q++)
+                {
+                    views[q].setRanking(t, l, ranked[q]);
+                }
+                pool.invoke(new ImputeTask(views,0,views.length));
+            }
+        }
+        RecordView []views=rest.toArray(new RecordView[0]);
+        pool.invoke(new ImputeTask(views,0,views.length));
+    }
+    finally
+    {
+        pool.shutdown();
+    }
+    for(int i=0;i<noOfMR;i++)
+    {
+        imputed[i].writeBack(attrNType);
+    }
+}
+
+/*
+ * returns the tree and leaf {t, l} of the first neighbour search of a record
+ * that has not been imputed yet, null if it searches no leaf with a ranking
+ * (no numerical value available to choose k by, see findBestkNN)
+ */
+private int[] firstSearchLeaf(RecordView v)
+{
+    int []recMV=v.getMissingFlags();
+    int z=-1, mPos=-1;
+    for(int j=0;j<noOfAttrs;j++)
+    {
+        if(recMV[j]==1 && z<0) z=j;
+        if(attrNType[j]==1 && recMV[j]==0 && mPos<0) mPos=j;
+    }
+    if(z<0 || mPos<0) return null;
+    int []leaf=findImputationLeaf(v.getRecord(),z,recMV);
+    return new int[]{leaf[2], leaf[3]};
+}
+
+/*
+ * imputes the records of views[lo] to views[hi-1], splitting the range in halves
+ */
+private class ImputeTask extends RecursiveAction
+{
+    private static final long serialVersionUID=1;
+    private RecordView []views;
+    private int lo, hi;
+
+    ImputeTask(RecordView []views, int lo, int hi)
+    {
+        this.views=views;
+        this.lo=lo;
+        this.hi=hi;
+    }
+
+    protected void compute()
+    {
+        if(hi-lo>1)
+        {
+            int mid=(lo+hi)>>>1;
+            invokeAll(new ImputeTask(views,lo,mid),
+                    new ImputeTask(views,mid,hi));
+            return;
+        }
+        mviNewEMI nemi=newEMI();
+        for(int i=lo;i<hi;i++)
+        {
+            imputeRecord(views[i],nemi);
+        }
+    }
+}
+
+/*
+ * finds the leaf whose records are searched for the neighbours of record g
+ * when imputing its attribute z. Returns {flag, flg, t, l}: flag -1->leaf l of
+ * the tree t of z, 0->leaf l of the tree t of the attribute flg, 1->no leaf
+ * applies and the whole data set is searched (t=l=-1).
+ */
+private int[] findImputationLeaf(int g, int z, int []recMV)
+{
+    int flg=-1, flag=-1;
+    int ct=0, cmt=0;
+    if(RecClassify[g][z]<0)
+    {
+        flag=0;
+        for(int s=0;s<noOfAttrs;s++)
+        {
+            if(RecClassify[g][s]>=0)
+                {
+                    ct++;
+                    if(recMV[s]==1)
+                    {
+                        cmt++;
+                    }
+                }
+        }
+        int ss=z+1;
+        if(ct>0||cmt>0)
+        {
+            for(int s=0;s<noOfAttrs;s++)
+            {
+                if(ss==noOfAttrs) ss=0;
+                if(ss!=z)
+                {
+                    if(RecClassify[g][ss]>=0)
+                    {
+                        if(cmt>0)
                         {
-                            tmpData[r][j]=dataset[bestNN[r]][j];
-                            MV1[r][j]=MV[bestNN[r]][j];
-                            if(MV1[r][j]==1)
+                            if(recMV[ss]==1)
                             {
-                               totMiss++;
+                                flg = ss;
+                                break;
                             }
                         }
-                        MR1[r]=MR[bestNN[r]];
-                   }
-                   for(int j=0;j<noOfAttrs;j++)
-                    {
-                        tmpData[kk][j]=dataset[g][j];
-                        MV1[kk][j]=MV[g][j];
-                        if(MV1[kk][j]==1)
+                        else
                         {
-                           totMiss++;
+                            flg = ss;
+                            break;
                         }
+
                     }
-                    MR1[kk]=MR[g];
+                }
+                ss++;
+            }
+        }
+        else
+        {
+            flag=1;
+        }
+    }
+    int t=-1, l=-1;
+    if(flag==-1)
+    {
+        t=missingAttrsTree[z];
+        l=RecClassify[g][z];
+    }
+    else if(flag ==0)
+    {
+        t=missingAttrsTree[flg];
+        l=RecClassify[g][flg];
+    }
+    return new int[]{flag, flg, t, l};
+}
 
-                    if(flag==-1)
+/*
+ * returns the records of leaf l of tree t, all records if t=-1
+ */
+private int[] getLeafRecords(int t, int l)
+{
+    if(t>=0) return leafIndex[t].getLeafRecords(l);
+    int []leafR=new int[noOfRecords];
+    for(int m=0;m<noOfRecords;m++)
+    {
+        leafR[m]=m;
+    }
+    return leafR;
+}
+
+/*
+ * imputes the missing values of a record, the record and its neighbours are
+ * read through the view
+ */
+private void imputeRecord(RecordView v, mviNewEMI nemi)
+{
+    int g=v.getRecord();
+    int []recMV=v.getMissingFlags();
+//            System.out.println ("Imputing record= "+g);
+    for(int z=0;z<noOfAttrs;z++)
+    {
+        if(recMV[z]==1)
+        {
+            int []leaf=findImputationLeaf(g,z,recMV);
+            int flag=leaf[0], flg=leaf[1];
+            int t=leaf[2], l=leaf[3];
+            int []leafR=getLeafRecords(t,l);
+
+           //best k
+          int []bestNN= findBestkNN(v,leafR,t,l);
+          int kk=bestNN.length;
+          if(kk>0)
+          {
+           double [][]tmpData=new double [kk+1][numAttrs.length];
+           long [][]MV1=new long [kk+1][(numAttrs.length+63)>>>6];
+           for(int r=0;r<kk;r++)
+           {
+                copyRecord(v,bestNN[r],tmpData[r],MV1[r]);
+           }
+            copyRecord(v,g,tmpData[kk],MV1[kk]);
+
+            if(flag==-1)
+            {
+                if(attrNType[z]==1)
+                {
+                    runCachedEMI(t,l,g,bestNN,tmpData,MV1,nemi);
+                    if(!Double.isNaN(tmpData[kk][numIndex[z]]))
+                    {
+                    v.setNumber(z,tmpData[kk][numIndex[z]]);recMV[z]=0;
+                    }
+                }
+                else{
+                    v.setCode(z,MajorityVal[t][l]);recMV[z]=0;
+                    }
+
+           }
+           else if(flag == 0)
+            {
+                if(attrNType[z]==1 || attrNType[flg]==1)
+                {
+                    runCachedEMI(t,l,g,bestNN,tmpData,MV1,nemi);
+                    if(attrNType[z]==1)
                     {
-                        if(attrNType[z]==1)
+                        if(!Double.isNaN(tmpData[kk][numIndex[z]]))
                         {
-                            nemi.runNewEMI(tmpData, MV1,MR1, attrNType,totMiss, 0,0);
-                            if(isMissing(tmpData[kk][z])==0)
-                            {
-                            dataset[g][z]= tmpData[kk][z];MV[g][z]=0;
-                            }
+                        v.setNumber(z,tmpData[kk][numIndex[z]]);recMV[z]=0;
                         }
-                        else{
-                            dataset[g][z]= MajorityVal[t][l];MV[g][z]=0;
-                            }
+                    }
+                    else{
+                            v.setCode(z,findModeValue(v,bestNN,z));recMV[z]=0;
+                    }
 
-                   }
-                   else if(flag == 0)
+                    if (flg>z)
                     {
-                        if(attrNType[z]==1 || attrNType[flg]==1)
+                        if(recMV[flg]==1)
                         {
-                            nemi.runNewEMI(tmpData, MV1,MR1, attrNType,totMiss, 0,0);
-                            if(attrNType[z]==1)
+                            if(attrNType[flg]==1)
                             {
-                                if(isMissing(tmpData[kk][z])==0)
+                                if(!Double.isNaN(tmpData[kk][numIndex[flg]]))
                                 {
-                                dataset[g][z]= tmpData[kk][z];MV[g][z]=0;
+                                    v.setNumber(flg,tmpData[kk][numIndex[flg]]);recMV[flg]=0;
                                 }
                             }
                             else{
-                                    dataset[g][z]=findModeValue(bestNN,z);MV[g][z]=0;
-                            }
-
-                            if (flg>z)
-                            {
-                                if(MV[g][flg]==1)
-                                {
-                                    if(attrNType[flg]==1)
-                                    {
-                                        if(isMissing(tmpData[kk][flg])==0)
-                                        {
-                                            dataset[g][flg]= tmpData[kk][flg];MV[g][flg]=0;
-                                        }
-                                    }
-                                    else{
-                                         if(RecClassify[g][flg]>=0)
-                                         {
-                                             dataset[g][flg]=MajorityVal[t][RecClassify[g][flg]];MV[g][flg]=0;
-                                         }
-                                         else{
-                                             dataset[g][flg]=findModeValue(bestNN,flg);MV[g][flg]=0;
-                                        }
-                                    }
-                                }
-                                z=flg;
-                            }
-
-
-                        }
-                        else{
-                               dataset[g][z]=findModeValue(bestNN,z);
-                               if(flg>z)
-                               {
-                               if(MV[g][flg]==1)
-                                {
-                                if(RecClassify[g][flg]>=0)
+                                 if(RecClassify[g][flg]>=0)
                                  {
-                                     dataset[g][flg]=MajorityVal[t][RecClassify[g][flg]];MV[g][flg]=0;
+                                     v.setCode(flg,MajorityVal[t][RecClassify[g][flg]]);recMV[flg]=0;
                                  }
                                  else{
-                                     dataset[g][flg]=findModeValue(bestNN,flg);MV[g][flg]=0;
-                                    }
-                                 }
-                                z=flg;
+                                     v.setCode(flg,findModeValue(v,bestNN,flg));recMV[flg]=0;
                                 }
                             }
-                   }
-                   else if(flag == 1)
-                    {
-                       int gl=-1;
-                       for(int j=0;j<noOfAttrs;j++)
-                        {
-                           if(attrNType[j]==1 && MV[g][j]==1)
-                           {
-                                gl=1;break;
-                           }
-                        }
-                       if(gl==1)
-                           {
-                               nemi.runNewEMI(tmpData, MV1,MR1, attrNType,totMiss, 0,0);
-                           }
-                       for(int j=0;j<noOfAttrs;j++)
-                        {
-                           if( MV[g][j]==1)
-                           {
-                               if(attrNType[j]==1)
-                               {
-                                    dataset[g][j]= tmpData[kk][j];
-                               }
-                               else{
-                                    dataset[g][j]= findModeValue(bestNN,j);
-                                }
-                               MV[g][j]=0;
-                           }
                         }
-                       z=noOfAttrs;
-
+                        z=flg;
                     }
 
+
+                }
+                else{
+                       v.setCode(z,findModeValue(v,bestNN,z));
+                       if(flg>z)
+                       {
+                       if(recMV[flg]==1)
+                        {
+                        if(RecClassify[g][flg]>=0)
+                         {
+                             v.setCode(flg,MajorityVal[t][RecClassify[g][flg]]);recMV[flg]=0;
+                         }
+                         else{
+                             v.setCode(flg,findModeValue(v,bestNN,flg));recMV[flg]=0;
+                            }
+                         }
+                        z=flg;
+                        }
                     }
+           }
+           else if(flag == 1)
+            {
+               int gl=-1;
+               for(int j=0;j<noOfAttrs;j++)
+                {
+                   if(attrNType[j]==1 && recMV[j]==1)
+                   {
+                        gl=1;break;
+                   }
+                }
+               if(gl==1)
+                   {
+                       runCachedEMI(t,l,g,bestNN,tmpData,MV1,nemi);
+                   }
+               for(int j=0;j<noOfAttrs;j++)
+                {
+                   if( recMV[j]==1)
+                   {
+                       if(attrNType[j]==1)
+                       {
+                            v.setNumber(j,tmpData[kk][numIndex[j]]);
+                       }
+                       else{
+                            v.setCode(j,findModeValue(v,bestNN,j));
+                        }
+                       recMV[j]=0;
+                   }
+                }
+               z=noOfAttrs;
 
+            }
 
-                }
             }
-//         for(int j=0;j<noOfAttrs;j++)
-//            System.out.print (dataset[g][j]+", ");
-//         System.out.print ("\n");
+
+
         }
     }
+}
+/*
+ * returns a new EMI that stops as set by setEMConvergence, with the residuals
+ * of setEMSeed and setEMConditionalMean. Imputing in place,
+ * EM runs on the data set (the records of a large leaf or the whole data set)
+ * use noOfThreads threads; in snapshot mode the records are already imputed
+ * in parallel and each EM runs in its own thread.
+ */
+private mviNewEMI newEMI()
+{
+    mviNewEMI nemi=new mviNewEMI();
+    nemi.setConvergence(emConvergence);
+    nemi.setConditionalMean(emConditionalMean);
+    if(emSeeded==1) nemi.setSeed(emSeed);
+    if(snapshotImpute!=1) nemi.setNoOfThreads(noOfThreads);
+    return nemi;
+}
 
-   
+/*
+ * adds an EM run of an EMI to the counts of this run
+ */
+private synchronized void countEMRun(mviNewEMI nemi)
+{
+    if(nemi.getLastIterations()==0) return;
+    emRuns++;
+    emIterations+=nemi.getLastIterations();
+    if(nemi.getLastConverged()==0) emCapped++;
+}
+
+/*
+ * runs the EMI for record g (the last row of tmpData) and its neighbours
+ * (bestNN) from leaf l of tree t, on the numerical values and missing masks
+ * of copyRecord. With a cache, the fit is the same for every record of the
+ * same records and values (see setEMCacheSize): a cached fit is used if one
+ * is found, otherwise EM runs on the records in the order of their ids with
+ * residuals seeded by the key, and its fit is cached. The record is then
+ * imputed by the fit (see mviNewEMI.imputeByFit), with the same seed.
+ */
+private void runCachedEMI(int t, int l, int g, int []bestNN, double [][]tmpData,
+        long [][]MV1, mviNewEMI nemi)
+{
+    if(emCache==null)
+    {
+        nemi.runNewEMI(tmpData, MV1, tmpData);
+        countEMRun(nemi);
+        return;
+    }
+    int kk=bestNN.length;
+    int []rows=Arrays.copyOf(bestNN,kk+1);
+    rows[kk]=g;
+    EMFitCache.Key key=new EMFitCache.Key(t,l,rows,tmpData,MV1);
+    mviNewEMI knemi=newEMI();
+    knemi.setSeed(key.getSeed(emCacheSeed));
+    EMFit fit=emCache.get(key);
+    if(fit==null)
+    {
+        long []order=new long[kk+1];  //record id and row of tmpData
+        for(int r=0;r<=kk;r++)
+        {
+            order[r]=(long)rows[r]<<32|r;
+        }
+        Arrays.sort(order);
+        double [][]x=new double[kk+1][];
+        long [][]missing=new long[kk+1][];
+        int self=0;  //the row of record g in x
+        for(int r=0;r<=kk;r++)
+        {
+            int row=(int)order[r];
+            x[r]=tmpData[row];
+            missing[r]=MV1[row];
+            if(row==kk) self=r;
+        }
+        double [][]imputed=new double[kk+1][tmpData[kk].length];
+        knemi.runNewEMI(x, missing, imputed);
+        countEMRun(knemi);
+        fit=knemi.getLastFit();
+        if(fit==null)
+        {   //some attributes were imputed by their average
+            System.arraycopy(imputed[self], 0, tmpData[kk], 0, tmpData[kk].length);
+            return;
+        }
+        emCache.put(key,fit);
+    }
+    knemi.imputeByFit(fit,tmpData[kk],MV1[kk]);
 }
+
 /*
  * The method finds the most frequent value of a catgorical
- * attribute within a data set (presented as an array)
+ * attribute within a data set (presented as an array), and returns its
+ * code, the code of '?' if all values are missing
  */
-private String findModeValue(int[]kID, int attrPos)
+private int findModeValue(RecordView v, int[]kID, int attrPos)
 {
-    String PreVal="?";
+    int PreVal=dataset.findCode(attrPos,"?");
     int tmp_rec=kID.length;
-    String []tmpDomain=new String[tmp_rec];
+    int []tmpDomain=new int[tmp_rec];
     int []tmpCnt=new int[tmp_rec];
     int tmpDS=0;
     for (int i=0;i<tmp_rec;i++)
     {
-        if(isMissing(dataset[kID[i]][attrPos])==0)
+        if(v.isMissing(kID[i],attrPos)==0)
         {
-            int flg=findDomain(tmpDomain,tmpDS,dataset[kID[i]][attrPos]);
+            int flg=findDomain(tmpDomain,tmpDS,v.getCode(kID[i],attrPos));
             if(flg==-1)
             {
-                tmpDomain[tmpDS]=dataset[kID[i]][attrPos];
+                tmpDomain[tmpDS]=v.getCode(kID[i],attrPos);
                 tmpCnt[tmpDS]++;
                 tmpDS++;
             }
@@ -764,17 +1491,17 @@ private String findModeValue(int[]kID, int attrPos)
  * The method is used to check whether or not a given value is already in the
  * domain list.
  * @param
- * tmpDomain-contains domain values of an attribute.
+ * tmpDomain-contains domain values (codes) of an attribute.
  * domainSize-the total number of values of the attribute
  * curVal- the current value is to be checked with existing domain values.
  * @return flag- is an integer value indicating Exist (1) or NOT exist(0)
  */
- private int findDomain(String []tmpDomain,int domainSize, String curVal)
+ private int findDomain(int []tmpDomain,int domainSize, int curVal)
     {
         int flag=-1;
         for(int i=0;i<domainSize;i++)
         {
-            if(curVal.equals(tmpDomain[i]))
+            if(curVal==tmpDomain[i])
             {
                flag=i; break;
             }
@@ -827,134 +1554,14 @@ public String findMajorityClassValues(int []attrType, int noAttr, String rule)
        return cv;
     }
 /*
- * this will generate data file for each leaf
- */
-private int FindLeafId(String []Record, int []attrType, int noAttr,
-        String []rules, int noofRules)
-    {
-        int leafID=-1;
-        for(int i=0;i<noofRules;i++)
-        {
-            if(isThisRecSatisfyRule(Record,attrType,noAttr,rules[i])==1)
-            {
-                leafID=i;break;
-            }
-        }
-        return leafID;
-    }
-
-    
-/*
- * this method set attrpos as class attribute in the dtNameFile
- */
-public void setClassAttribute(String srcNameFile, String dtNameFile,int attrPos,int totalAttr)
-    {
-        
-        StringTokenizer tokenizer;
-        FileManager fileManager_g = new FileManager();
-
-        String [] nameFile_g = fileManager_g.readFileAsArray(new File(srcNameFile));
-        File outFile = new File(dtNameFile);
-        
-        
-        String val;
-        String []attrInfoG=new String[totalAttr];
-        String []attrName=new String[totalAttr];
-        for(int i=0; i<2;i++)
-         {
-            
-            tokenizer = new StringTokenizer(nameFile_g[i], " ,\t\n\r\f");
-            for(int j=0; j<totalAttr;j++)
-                {
-                    val=tokenizer.nextToken();
-                    if(i==0)
-                    {
-                    if(val.equals("2"))
-                            val="0";
-                    if(j==attrPos)
-                             val="2";
-                    attrInfoG[j]=val;
-                    }
-                    else
-                    {
-                      attrName[j]=val;
-                    }
-                }
-            String rec="";
-            for(int j=0; j<totalAttr;j++)
-                {
-                    if(i==0)
-                    {
-                        if(j==0)
-                            rec=attrInfoG[j];
-                        else
-                            rec=rec+" "+attrInfoG[j];
-                    }
-                    else
-                    {
-                      if(j==0)
-                            rec=attrName[j];
-                        else
-                            rec=rec+","+attrName[j];
-                    }
-                }
-          
-            if(i==0) 
-            {
-                rec=rec+"\n";
-                fileManager_g.writeToFile(outFile, rec);
-             }
-            else
-                fileManager_g.appendToFile(outFile, rec);
-            }
-     }
-
-/*
- * this method is used to exchange data between i-th position (attrPos) and the last place
- */
-public void exChangeAttrPosition(String dtFile,int attrPos,int totalAttr)
-    {
-        int i,j;
-        StringTokenizer tokenizer;
-        FileManager fileManager_g = new FileManager();
-        String [] dataFile_g = fileManager_g.readFileAsArray(new File(dtFile));
-        File outFile = new File(dtFile);
-        int noOfRec=dataFile_g.length;
-        String []attrName=new String[totalAttr];
-        for(i=0; i<noOfRec;i++)
-         {
-
-            tokenizer = new StringTokenizer(dataFile_g[i], " ,\t\n\r\f");
-            for(j=0; j<totalAttr;j++)
-                 attrName[j]=tokenizer.nextToken();
-           String gtemp;
-           gtemp=attrName[attrPos];
-           attrName[attrPos]=attrName[totalAttr-1];
-           attrName[totalAttr-1]=gtemp;
-           String rec="";
-           for(j=0; j<totalAttr;j++)
-               if(j==0)
-                     rec=attrName[j];
-               else
-                     rec=rec+", "+attrName[j];
-           rec=rec+"\n";
-           if(i==0)
-                fileManager_g.writeToFile(outFile, rec);
-           else
-                fileManager_g.appendToFile(outFile, rec);
-         }
-    }
-/*
- * this method is used to generalise a numerical attribute (attrPos)
- * into log|domainsize of attrPos| categories
+ * this method generalises a numerical attribute (attrPos) of a data set
+ * into sqrt|domainsize of attrPos| categories, each value is replaced
+ * by the range (low-high) of its category.
+ * @return the number of categories, 0->the data set is unchanged
  */
-public void generalise(String srcFile, String dtFile,int attrPos,int totalAttr)
+private int generaliseAttribute(String [][]dataFile, int attrPos)
     {
         int i,j;
-        StringTokenizer tokenizer;
-        FileManager fileManager = new FileManager();
-        String [][] dataFile = fileManager.readFileAs2DArray(new File(srcFile));
-        File outFile = new File(dtFile);
         int noOfRec=dataFile.length;
         double []domain=new double[noOfRec];
         int domainSize=0;
@@ -965,22 +1572,28 @@ public void generalise(String srcFile, String dtFile,int attrPos,int totalAttr)
             val=dataFile[i][attrPos];
             if(isMissing(val)==0)
             {
-                cval= Double.parseDouble(val);
-                if(chkDomain(domain,domainSize,cval)==0)
-                {
-                    domain[domainSize]=cval;
-                    domainSize++;
-                }
+                domain[domainSize]= Double.parseDouble(val);
+                domainSize++;
             }
         }
+        //Sorting by using sort(double[] d) method, then removing duplicates
+        Arrays.sort(domain,0,domainSize);
+        int uniqueSize=0;
+        for(i=0; i<domainSize;i++)
+        {
+            if(uniqueSize==0 || domain[i]!=domain[uniqueSize-1])
+            {
+                domain[uniqueSize]=domain[i];
+                uniqueSize++;
+            }
+        }
+        domainSize=uniqueSize;
         int NofGroups;
         if(domainSize>2)
 //            NofGroups=(int)Math.round(Math.log1p((double)domainSize));
             NofGroups=(int)Math.round(Math.sqrt((double)domainSize));
         else
             NofGroups=domainSize;
-        //Sorting by using sort(double[] d) method.
-        Arrays.sort(domain,0,domainSize);
 
        int groupSize=0;
        if(NofGroups>0)
@@ -1010,7 +1623,6 @@ public void generalise(String srcFile, String dtFile,int attrPos,int totalAttr)
       
       for(i=0; i<noOfRec;i++)
         {
-           String rec="";
             val=dataFile[i][attrPos];
             if(isMissing(val)==1)val="0";
             cval= Double.parseDouble(val);
@@ -1032,21 +1644,9 @@ public void generalise(String srcFile, String dtFile,int attrPos,int totalAttr)
                 rng= lowDomain[fg]+"-"+highDomain[fg];
             }
            dataFile[i][attrPos]=rng;
-           for(j=0;j<totalAttr;j++)
-               rec=rec+dataFile[i][j]+", ";
-           //write record to file
-           if(i==0)
-           {
-               rec=rec+"\n";
-               fileManager.writeToFile(outFile, rec);
-           }
-           else
-           {
-                if(i<noOfRec-1)  rec=rec+"\n";
-                fileManager.appendToFile(outFile, rec);
-            }
         }
         }
+        return NofGroups;
     }
 /**
   * this function will indicate whether or not a value is missing.
@@ -1064,97 +1664,4 @@ public void generalise(String srcFile, String dtFile,int attrPos,int totalAttr)
                     }
        return ret;
     }
-private int chkDomain(double []domain,int domainSize, double curVal)
-    {
-        int flag=0;
-        for(int i=0;i<domainSize;i++)
-        {
-            if(curVal==domain[i])
-            {
-               flag=1; break;
-            }
-        }
-        return flag;
-    }
-
-/*
- * this will check whether a record satisfy a rule
- */
-public int isThisRecSatisfyRule(String []Record, int []attrType, int noAttr, String rule)
-    {
-        int flag=0;
-        String dStr,rStr;
-        int match=0, condition=0;
-        StringTokenizer tokenizerRule= new StringTokenizer(rule, " \t\n\r\f");
-        for(int i=0;i<noAttr;i++)
-        {
-            dStr=Record[i];
-            rStr=tokenizerRule.nextToken();
-            if(!rStr.equals("-")&&attrType[i]!=2)
-            {
-                condition++;
-                if(isMissing(dStr)==0)
-                {
-                if(attrType[i]==0)   //for categorical
-                {
-                    if(rStr.equals(dStr))
-                    {
-                        match++;
-                    }
-
-                }
-                else if(attrType[i]==1)  //for numerical
-                {
-                  double dVal=Double.parseDouble(dStr);
-                  String dh;
-                  dh=rStr.substring(1, rStr.length());
-                  if(rStr.startsWith("G"))
-                  {
-                      double drul=Double.parseDouble(dh);
-                      if(dVal>drul)match++;
-
-                  }
-                  else if(rStr.startsWith("L"))
-                  {
-                      double drul=Double.parseDouble(dh);
-                      if(dVal<=drul)match++;
-                  }
-                  else if(rStr.startsWith("R"))
-                  {
-                      int indexOfComma = dh.lastIndexOf(",");
-                      double leftDh=Double.parseDouble(dh.substring(0, indexOfComma-1));
-                      double rightDh=Double.parseDouble(dh.substring(indexOfComma+1, dh.length()));
-                      if(leftDh==rightDh)
-                      {
-                            if(dVal==rightDh)match++;
-                      }
-                     else if(leftDh<rightDh)
-                      {
-                          if(dVal>=leftDh && dVal<=rightDh)match++;
-                     }
-                      else
-                      {
-                           if(dVal>=rightDh && dVal<=leftDh)match++;
-                      }
-
-                  }
-                }
-                }
-            }
-        }
-       if(match==condition) flag=1;   //record satisfied the rule
-       return flag;
-    }
-
-/*
- * this will return the no. of rules for a specific tree
- */
-public int noOfRules(String treeFile)
-    {
-        FileManager fileManager_g = new FileManager();
-        String [] rules = fileManager_g.readFileAsArray(new File(treeFile));
-        int noR=rules.length-1;
-        if(noR<0) noR=0;
-        return noR;
-    }
 }
@@ -4,7 +4,8 @@
  */
 
 package kdmi;
-import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 /**
  *
  * @author grahman
@@ -16,143 +17,510 @@ public class kNN_ary
 /** instance variables */
     /** default file names */
     private int noOfRec; // total no. of missing attributes of the data file
-    private int kk; // k-NN
-    private double [][]knnIdAndDist;
-    private int cnt;
-    String  rec;
+    /** rank by quickselect when at least 1/SELECT_FRACTION of the rows are ranked */
+    private static final int SELECT_FRACTION=4;
+    private DistanceKernel kernel;  //packed rows, null->read the rows through the view
+    private DistanceKernel.Query query;  //the record being ranked for, in the kernel
+    /** records and rows in a tile of the batch distances */
+    private static final int QUERY_TILE=32, ROW_TILE=512;
     /*
-     * this method will take control and call the appropriate method
+     * this method ranks the rows of a leaf by their distance to the record
+     * being imputed, nearest first, where rows at the same distance keep their
+     * order in the leaf. The distances are computed once, so the k nearest
+     * neighbours for any k are the first k of the ranking. The ranking holds
+     * positions in leafR, the position cRow (the record itself) is left out.
      */
-    public int[] runkNN(int []attrNtype,String []testRec, String [][]dFile,
-            int k, int cRow)
+    public int[] rankNeighbours(int []attrNtype, RecordView v, int []leafR,
+            int cRow)
     {
-       kk=k;
-       cnt=0;
-       knnIdAndDist=new double[kk][2];
-       noOfRec=dFile.length;
-       double tmpD=0;
+       return rankNeighbours(attrNtype, v, leafR, cRow, leafR.length);
+    }
+
+    /*
+     * this method returns the first k positions of the ranking of
+     * rankNeighbours, fewer if the leaf has no k other rows. A small k keeps
+     * the nearest rows in a bounded heap, a k that is a large fraction of the
+     * leaf selects them by quickselect and sorts only those.
+     */
+    public int[] rankNeighbours(int []attrNtype, RecordView v, int []leafR,
+            int cRow, int k)
+    {
+       setQuery(v);
+       noOfRec=leafR.length;
+       int n=noOfRec;
+       if(cRow>=0 && cRow<noOfRec) n--;
+       k=Math.max(0, Math.min(k, n));
+       int []ranked=new int[k];
+       if((long)k*SELECT_FRACTION<n)
+       {
+           NeighbourHeap h=new NeighbourHeap(k);
+           for(int i=0;i<noOfRec;i++)
+           {
+               if(i!=cRow)
+                   h.offer(i, boundedDistance(v, leafR[i], attrNtype, h.getBound()));
+           }
+           h.drainSorted(ranked, null);
+           return ranked;
+       }
+       double []dist=new double[noOfRec];
        for(int i=0;i<noOfRec;i++)
        {
            if(i!=cRow)
+           dist[i]=boundedDistance(v, leafR[i], attrNtype, Double.POSITIVE_INFINITY);
+       }
+       return rankByDistance(dist, cRow, k);
+    }
+
+    /*
+     * this method returns the distances of the rows of a leaf to the record
+     * being imputed, by position in leafR; the position cRow (the record
+     * itself) is left at 0
+     */
+    public double[] distances(int []attrNtype, RecordView v, int []leafR,
+            int cRow)
+    {
+       setQuery(v);
+       double []dist=new double[leafR.length];
+       for(int i=0;i<leafR.length;i++)
+       {
+           if(i!=cRow)
+           dist[i]=boundedDistance(v, leafR[i], attrNtype, Double.POSITIVE_INFINITY);
+       }
+       return dist;
+    }
+
+    /*
+     * returns k nearest positions of dist (distances of the rows of a leaf),
+     * leaving out cRow, as a scan of the rows in leaf order keeps them: the
+     * first k rows fill k slots, then a row takes the slot of the farthest
+     * kept row (the first such slot) if it is strictly nearer. A row at the
+     * same distance as the farthest kept one is not kept, and the positions
+     * come in slot order, not ranked. The slots are kept in a heap with the
+     * farthest (first) slot on top.
+     */
+    static int[] scanNeighbours(double []dist, int cRow, int k)
+    {
+       int noOfRows=dist.length;
+       int n=noOfRows;
+       if(cRow>=0 && cRow<noOfRows) n--;
+       k=Math.max(0, Math.min(k, n));
+       int []slot=new int[k];
+       int []heap=new int[k];  //slots, farthest first
+       int cnt=0;
+       for(int i=0;i<noOfRows;i++)
+       {
+           if(i==cRow) continue;
+           if(cnt<k)
+           {
+               slot[cnt]=i;
+               heap[cnt]=cnt;
+               cnt++;
+               if(cnt==k)
+               {
+                   for(int h=k/2-1;h>=0;h--) siftSlot(dist, slot, heap, h);
+               }
+               continue;
+           }
+           if(dist[slot[heap[0]]]>dist[i])
            {
-           tmpD=calculateEuclidianDistance(testRec,dFile, i,attrNtype);
-           neighboursList(i,tmpD);
+               slot[heap[0]]=i;
+               siftSlot(dist, slot, heap, 0);
            }
        }
-       int []kID=new int[kk];
-       for (int i=0;i<kk;i++)
-       {
-           kID[i]=(int)knnIdAndDist[i][0];
-       }
-       return kID;
-    }
-
-//private void printScore(String trainFile,String kNNFile,String distFile)
-//{
-////    System.out.print("Distance of "+kk+" Neighbours\n");
-//    String []dFile = fileManager.readFileAsArray(new File(trainFile));
-//    File kFile=new File(kNNFile);
-//    File diFile=new File(distFile);
-//    int u=0;
-//    double dist=0.0;
-//
-//    for(int i=0;i<noOfRec;i++)
-//        {   dist=chkNeighbour(i);
-//            if(dist>=0)
-//            {
-//
-//             }
-//         }
-//}
-
-public double chkNeighbour(int recId)
-  {
-    double dist=-1.0;
-     for(int i=0; i<cnt;i++)
-        {
-            if(recId==knnIdAndDist[i][0])
-            {
-               dist=knnIdAndDist[i][1];
-               break;
-            }
-        }
-    return dist;
-}
-public void neighboursList(int recId, double dist)
-{
-    int max=-1,i;
-    double big=Double.NEGATIVE_INFINITY;
-    if(cnt>=kk)
+       return slot;
+    }
+
+    /*
+     * moves heap[h] down to its place in the heap of scanNeighbours
+     */
+    private static void siftSlot(double []dist, int []slot, int []heap, int h)
     {
-        for(i=0; i<cnt;i++)
-        {
-            if(big<knnIdAndDist[i][1])
-            {
-               max=i;
-               big=knnIdAndDist[i][1];
-            }
-        }
-        if(big>dist)
-        {
-           knnIdAndDist[max][1]= dist;
-           knnIdAndDist[max][0]= recId;
-        }
+       int k=heap.length;
+       int s=heap[h];
+       while(true)
+       {
+           int c=2*h+1;
+           if(c>=k) break;
+           if(c+1<k && fartherSlot(dist, slot, heap[c+1], heap[c])) c++;
+           if(!fartherSlot(dist, slot, heap[c], s)) break;
+           heap[h]=heap[c];
+           h=c;
+       }
+       heap[h]=s;
     }
- else
+
+    /*
+     * returns true if slot a is replaced before slot b: it holds a farther
+     * row, or a row as far in an earlier slot
+     */
+    private static boolean fartherSlot(double []dist, int []slot, int a, int b)
     {
-        knnIdAndDist[cnt][1]= dist;
-        knnIdAndDist[cnt][0]= recId;
-        cnt++;
+       double da=dist[slot[a]], db=dist[slot[b]];
+       return da>db || (da==db && a<b);
     }
 
-}
- /*
-  * This method calculate distances between two records
-  * for categorical dist=0 if values are equal otherwise 1
-  * for numerical d=sqrt((a-b)^2)
+    /*
+     * returns the first k positions of the ranking of dist (distances of the
+     * rows of a leaf) by distance and then by position, leaving out cRow
+     */
+    static int[] rankByDistance(double []dist, int cRow, int k)
+    {
+       int noOfRows=dist.length;
+       int n=noOfRows;
+       if(cRow>=0 && cRow<noOfRows) n--;
+       k=Math.max(0, Math.min(k, n));
+       int []ranked=new int[k];
+       if((long)k*SELECT_FRACTION<n)
+       {
+           NeighbourHeap h=new NeighbourHeap(k);
+           for(int i=0;i<noOfRows;i++)
+           {
+               if(i!=cRow) h.offer(i, dist[i]);
+           }
+           h.drainSorted(ranked, null);
+           return ranked;
+       }
+       int []pos=new int[n];
+       double []d=new double[n];
+       n=0;
+       for(int i=0;i<noOfRows;i++)
+       {
+           if(i!=cRow)
+           {
+           pos[n]=i;
+           d[n]=dist[i];
+           n++;
+           }
+       }
+       selectNearest(pos, d, n, k);
+       sortNearest(pos, d, 0, k);
+       System.arraycopy(pos, 0, ranked, 0, k);
+       return ranked;
+    }
+
+    /*
+     * this method ranks the rows of a leaf for a batch of records at once, the
+     * ranking of record q being what rankNeighbours(attrNtype, v[q], leafR,
+     * cRow[q], k) returns. The distances are computed in tiles of records and
+     * rows, so a tile of rows is read once for many records, and the distance
+     * between two records of the batch is computed once. The views must not
+     * change while ranking. Tiles of records are computed in parallel on the
+     * pool, null->in this thread.
+     */
+    public int[][] rankNeighbours(final int []attrNtype, final RecordView []v,
+            final int []cRow, final int []leafR, int k, ForkJoinPool pool)
+    {
+       final int m=v.length;
+       final int n=leafR.length;
+       final int []queryAt=new int[n];  //record of the batch at a position, -1 for none
+       Arrays.fill(queryAt, -1);
+       for(int q=0;q<m;q++)
+       {
+           if(cRow[q]>=0) queryAt[cRow[q]]=q;
+       }
+       final DistanceKernel.Query []queries=new DistanceKernel.Query[m];
+       if(kernel!=null)
+       {
+           for(int q=0;q<m;q++)
+           {
+               queries[q]=kernel.newQuery();
+               kernel.setQuery(queries[q], v[q]);
+           }
+       }
+       final double [][]dist=new double[m][];
+       final int [][]ranked=new int[m][];
+       final int kk=k;
+       if(pool==null)
+       {
+           distanceTile(attrNtype, v, queries, cRow, queryAt, leafR, dist, 0, m);
+           rankTile(cRow, queryAt, dist, kk, ranked, 0, m);
+           return ranked;
+       }
+       pool.invoke(new RecursiveAction() {
+           protected void compute()
+           {
+               List<RecursiveAction> tiles=new ArrayList<RecursiveAction>();
+               for(int q0=0;q0<m;q0+=QUERY_TILE)
+               {
+                   final int lo=q0, hi=Math.min(m, q0+QUERY_TILE);
+                   tiles.add(new RecursiveAction() {
+                       protected void compute()
+                       {
+                           distanceTile(attrNtype, v, queries, cRow, queryAt, leafR, dist, lo, hi);
+                       }
+                   });
+               }
+               invokeAll(tiles);
+               tiles.clear();
+               //all distances are computed before any is copied
+               for(int q0=0;q0<m;q0+=QUERY_TILE)
+               {
+                   final int lo=q0, hi=Math.min(m, q0+QUERY_TILE);
+                   tiles.add(new RecursiveAction() {
+                       protected void compute()
+                       {
+                           rankTile(cRow, queryAt, dist, kk, ranked, lo, hi);
+                       }
+                   });
+               }
+               invokeAll(tiles);
+           }
+       });
+       return ranked;
+    }
+
+    /*
+     * copies the distances of the records lo..hi-1 of a batch to the records
+     * earlier in the batch, which computed them, and ranks the rows for them
+     */
+    private static void rankTile(int []cRow, int []queryAt, double [][]dist, int k,
+            int [][]ranked, int lo, int hi)
+    {
+       for(int q=lo;q<hi;q++)
+       {
+           if(cRow[q]>=0)
+           {
+               for(int p=0;p<queryAt.length;p++)
+               {
+                   int q2=queryAt[p];
+                   if(q2>=0 && q2<q) dist[q][p]=dist[q2][cRow[q]];
+               }
+           }
+           ranked[q]=rankByDistance(dist[q], cRow[q], k);
+       }
+    }
+
+    /*
+     * computes the distances of the records lo..hi-1 of a batch to the rows of
+     * a leaf, a tile of rows at a time. The distance to a record earlier in the
+     * batch is left to be copied from that record.
+     */
+    private void distanceTile(int []attrNtype, RecordView []v, DistanceKernel.Query []queries,
+            int []cRow, int []queryAt, int []leafR, double [][]dist, int lo, int hi)
+    {
+       int n=leafR.length;
+       for(int q=lo;q<hi;q++)
+       {
+           dist[q]=new double[n];
+       }
+       for(int r0=0;r0<n;r0+=ROW_TILE)
+       {
+           int r1=Math.min(n, r0+ROW_TILE);
+           for(int q=lo;q<hi;q++)
+           {
+               double []d=dist[q];
+               for(int p=r0;p<r1;p++)
+               {
+                   if(p==cRow[q]) continue;
+                   int q2=queryAt[p];
+                   if(q2>=0 && q2<q && cRow[q]>=0) continue;
+                   if(kernel!=null)
+                       d[p]=Math.sqrt(kernel.distance(queries[q], leafR[p], Double.POSITIVE_INFINITY));
+                   else
+                       d[p]=calculateDistance(v[q], leafR[p], attrNtype);
+               }
+           }
+       }
+    }
+
+    /*
+     * this method returns the same as rankNeighbours for the rows of an index
+     * (leafR=index.getRows()), searching the index instead of computing the
+     * distance of every row. It pays off when k is small against the rows.
+     */
+    public int[] rankNeighbours(int []attrNtype, RecordView v, NeighbourIndex index,
+            int cRow, int k)
+    {
+       setQuery(v);
+       noOfRec=index.getRows().length;
+       int n=noOfRec;
+       if(cRow>=0 && cRow<noOfRec) n--;
+       k=Math.max(0, Math.min(k, n));
+       NeighbourHeap h=new NeighbourHeap(k);
+       index.search(this, v, cRow, h);
+       int []ranked=new int[k];
+       h.drainSorted(ranked, null);
+       return ranked;
+    }
+
+    /*
+     * this method approximates rankNeighbours for the rows of an index
+     * (leafR=index.getRows()): the index is searched nearest node first and
+     * the search stops once maxRows rows were measured (at least k), so a
+     * neighbour in a node not reached by then is missed.
+     */
+    public int[] rankNeighbours(int []attrNtype, RecordView v, NeighbourIndex index,
+            int cRow, int k, int maxRows)
+    {
+       setQuery(v);
+       noOfRec=index.getRows().length;
+       int n=noOfRec;
+       if(cRow>=0 && cRow<noOfRec) n--;
+       k=Math.max(0, Math.min(k, n));
+       NeighbourHeap h=new NeighbourHeap(k);
+       index.search(this, v, cRow, h, Math.max(k, maxRows));
+       int []ranked=new int[k];
+       h.drainSorted(ranked, null);
+       return ranked;
+    }
+
+    /*
+     * returns the share of the exact k nearest neighbours (exact) found by an
+     * approximate search (approx), 1 if there are none
+     */
+    public static double recall(int []approx, int []exact)
+    {
+       if(exact.length==0) return 1.0;
+       int []a=approx.clone();
+       Arrays.sort(a);
+       int found=0;
+       for(int i=0;i<exact.length;i++)
+       {
+           if(Arrays.binarySearch(a, exact[i])>=0)found++;
+       }
+       return (double)found/exact.length;
+    }
+
+    /*
+     * reorders ids/dist so that their first k entries are the k nearest, by
+     * distance and then by id, using quickselect
+     */
+    static void selectNearest(int []ids, double []dist, int n, int k)
+    {
+       int lo=0, hi=n-1;
+       while(lo<hi && k>lo && k<=hi)
+       {
+           int p=partition(ids, dist, lo, hi);
+           if(p==k) return;
+           if(p<k) lo=p+1;
+           else hi=p-1;
+       }
+    }
+
+    /*
+     * sorts ids/dist from..to-1 by distance and then by id
+     */
+    static void sortNearest(int []ids, double []dist, int from, int to)
+    {
+       while(to-from>16)
+       {
+           int p=partition(ids, dist, from, to-1);
+           //recurse into the smaller part, loop on the larger
+           if(p-from<to-p-1)
+           {
+               sortNearest(ids, dist, from, p);
+               from=p+1;
+           }
+           else
+           {
+               sortNearest(ids, dist, p+1, to);
+               to=p;
+           }
+       }
+       for(int i=from+1;i<to;i++)
+       {
+           int id=ids[i];
+           double d=dist[i];
+           int j=i-1;
+           while(j>=from && NeighbourHeap.greater(dist[j], ids[j], d, id))
+           {
+               ids[j+1]=ids[j];
+               dist[j+1]=dist[j];
+               j--;
+           }
+           ids[j+1]=id;
+           dist[j+1]=d;
+       }
+    }
+
+    /*
+     * partitions lo..hi around the median of the first, middle and last
+     * entries and returns the final position of that pivot
+     */
+    private static int partition(int []ids, double []dist, int lo, int hi)
+    {
+       int mid=(lo+hi)>>>1;
+       if(NeighbourHeap.greater(dist[lo], ids[lo], dist[mid], ids[mid])) swap(ids, dist, lo, mid);
+       if(NeighbourHeap.greater(dist[mid], ids[mid], dist[hi], ids[hi])) swap(ids, dist, mid, hi);
+       if(NeighbourHeap.greater(dist[lo], ids[lo], dist[mid], ids[mid])) swap(ids, dist, lo, mid);
+       swap(ids, dist, mid, hi);
+       int pid=ids[hi];
+       double pd=dist[hi];
+       int store=lo;
+       for(int i=lo;i<hi;i++)
+       {
+           if(NeighbourHeap.greater(pd, pid, dist[i], ids[i]))
+           {
+               swap(ids, dist, i, store);
+               store++;
+           }
+       }
+       swap(ids, dist, store, hi);
+       return store;
+    }
+
+    private static void swap(int []ids, double []dist, int i, int j)
+    {
+       int t=ids[i]; ids[i]=ids[j]; ids[j]=t;
+       double d=dist[i]; dist[i]=dist[j]; dist[j]=d;
+    }
+
+/*
+  * This method calculates the distance between the record being imputed and
+  * a row: for categorical dist=0 if values are equal otherwise 1, for numerical
+  * d=sqrt((a-b)^2), summed over the attributes available in both
   */
-public double calculateEuclidianDistance(String []testRec, String [][]trainRec,
-        int row, int[] attrType)
+public double calculateDistance(RecordView v, int row, int[] attrType)
 {
-    double dist=Double.POSITIVE_INFINITY, totdist=0.0,a,b;
-    int noAttr=testRec.length;
-    for(int i=0;i<noAttr;i++)
+    int rec=v.getRecord();
+    double totdist=0.0,d;
+    for(int i=0;i<attrType.length;i++)
     {
-        if (isMissing(trainRec[row][i])==0 && isMissing(testRec[i])==0)
+        if (v.isMissing(row,i)==0 && v.isMissing(rec,i)==0)
         {
             if(attrType[i]==1)
             {
-                a=Double.parseDouble(trainRec[row][i]);
-                b=Double.parseDouble(testRec[i]);
-                totdist+=Math.pow((a-b), 2);
-           }
-            else
+                d=v.getNumber(row,i)-v.getNumber(rec,i);
+                totdist+=d*d;
+            }
+            else if(v.getCode(row,i)!=v.getCode(rec,i))
             {
-                if(trainRec[row][i].equals(testRec[i]))
-                    totdist+= 0;
-                else
-                    totdist+= 1;
+                totdist+= 1;
             }
         }
     }
-    dist=Math.sqrt(totdist);
-    return dist;
+    return Math.sqrt(totdist);
 }
 /*
-  * this function will indicate whether or not a value is missing.
-  */
+ * this method sets packed rows to compute distances on instead of reading the
+ * rows through the view, null->read them through the view. The kernel must
+ * hold the current values of the rows.
+ */
+public void setDistanceKernel(DistanceKernel k)
+{
+    kernel=k;
+    query=null;
+    if(kernel!=null) query=kernel.newQuery();
+}
 
- private int isMissing(String oStr)
-    {
-        int ret=0;
-//        try{
-            if(oStr.equals("")||oStr.equals("?")||oStr.equals("�"))
-                     {
-                         ret=1;
-                    }
-//        }
-//        catch(Exception e)
-//            {ret=1;}
-      return ret;
-    }
+private void setQuery(RecordView v)
+{
+    if(kernel!=null) kernel.setQuery(query, v);
+}
+
+/*
+  * This method returns the distance between the record being ranked for and a
+  * row as calculateDistance does. With a distance kernel, summing stops once
+  * the row is beyond bound (the k-th nearest distance so far) and infinity is
+  * returned; the slack keeps rows at the bound itself, which can still be kept
+  * by their position.
+  */
+double boundedDistance(RecordView v, int row, int []attrType, double bound)
+{
+    if(kernel==null) return calculateDistance(v, row, attrType);
+    double abortAt=bound*bound*(1+1e-9);
+    double sum=kernel.distance(query, row, abortAt);
+    if(sum>abortAt) return Double.POSITIVE_INFINITY;
+    return Math.sqrt(sum);
+}
 }
\ No newline at end of file
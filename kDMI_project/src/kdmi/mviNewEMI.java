@@ -7,6 +7,9 @@ package kdmi;
 import SysFor.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import Jama.*;
 /**
  *
@@ -18,6 +21,25 @@ public class mviNewEMI
 
 double[] attrMean;
 String  []aty;
+/** the EM fit of the last runNewEMI, null if it did not impute by EM alone */
+EMFit lastFit;
+/** when EM stops */
+private EMConvergence convergence=new EMConvergence();
+/** no. of EM iterations of the last runNewEMI, 0 if EM did not run */
+private int lastIterations;
+/** 1->EM of the last runNewEMI converged, 0->it stopped at the max. iterations or did not run */
+private int lastConverged;
+/** no. of threads of an EM run of PARALLEL_MIN_ROWS records or more */
+private int noOfThreads=1;
+/** an EM run of fewer records runs in the calling thread */
+static final int PARALLEL_MIN_ROWS=4*EMStatistics.BLOCK_ROWS;
+/** the pool of the EM run in progress, null->it runs in the calling thread */
+private ForkJoinPool pool;
+/** seed of the residuals of the first EM iteration, used if seeded==1 */
+private long seed;
+private int seeded=0;  //1->seed is set, 0->a new seed for each EM run
+/** 1->impute by the conditional mean only, without the residual of the first iteration */
+private int conditionalMean=0;
 /**
  * Implementation of the EMI algorithm
  *
@@ -53,6 +75,11 @@ String  []aty;
        if(totalMissing>0)
         {
            runNewEMI(dataset, MV,MR, attrNType,totalMissing, 0,0);
+           if(lastIterations>0 && lastConverged==0)
+           {
+               Logger.getLogger(mviNewEMI.class.getName()).log(Level.WARNING,
+                       "EM stopped after "+lastIterations+" iterations without converging, see setConvergence");
+           }
         }
        //print to a file
        arrayToFile(dataset,outputFile);
@@ -61,27 +88,32 @@ String  []aty;
    // this method is used to print score to file
 private void arrayToFile(String [][]data,String outF)
 {
-        FileManager fileManager=new FileManager();
-        int totalRecords=data.length;
-        int totalAttrs=data[0].length;
-        File outFile=new File(outF);
-        for(int i=0;i<totalRecords;i++)
+        try
         {
-            String rec="";
-            for(int j=0;j<totalAttrs;j++)
-           {
-            rec=rec+data[i][j]+", ";
-           }
-           if(i<totalRecords-1)
-               rec=rec+"\n";
-           if(i==0)
-               fileManager.writeToFile(outFile, rec);
-           else
-               fileManager.appendToFile(outFile, rec);
+            DataWriter writer=new DataWriter(new File(outF));
+            try
+            {
+                for(int i=0;i<data.length;i++)
+                {
+                    writer.writeRow(data[i]);
+                }
+            }
+            finally
+            {
+                writer.close();
+            }
+            Logger.getLogger(mviNewEMI.class.getName()).log(Level.FINE, writer.getReport());
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(mviNewEMI.class.getName()).log(Level.WARNING,
+                    "Error: IO Exception occured " + ex);
         }
 }
 /**
- * runNewEMI in the implementation of the EMI algorithm
+ * runNewEMI in the implementation of the EMI algorithm, for data held as text.
+ * The numerical values are parsed, imputed by the double version of runNewEMI
+ * and the imputed values written back as text.
  *
  * @param data 2D array takes data elements as string, and contains the imputed values
  * @param MissingMatrix 2D array where 1-> Missing, 0->non-missing
@@ -96,22 +128,132 @@ public void runNewEMI(String [][]data, int [][]MissingMatrix,
 {
     int totalRecords=data.length;
     int totalAttrs=data[0].length;
-    int []avgImputation=new int[totalAttrs];
-    int[] newAttrNType=new int[totalAttrs];
-    double[] attrAvgVal=new double[totalAttrs];
-    attrMean=new double[totalAttrs];
+    double [][]values=new double[totalRecords][totalAttrs];
+    for(int i=0; i<totalRecords;i++)
+    {
+        for(int c=0; c<totalAttrs;c++)
+        {
+            if(attrNType[c]!=1 || isMissing(data[i][c])==1)
+                values[i][c]=Double.NaN;
+            else
+                values[i][c]=Double.parseDouble(data[i][c]);
+        }
+    }
+    runNewEMI(values, MissingMatrix, MissingRecord, attrNType, totalMissing, sPos, MissAvailable);
+    for(int c=sPos; c<totalAttrs;c++)
+    {
+        if(attrNType[c]==1)
+        {
+            for(int i=0; i<totalRecords;i++)
+            {
+                if(MissingMatrix[i][c]==1)
+                {
+                    data[i][c]=values[i][c]+"";
+                }
+            }
+        }
+    }
+}
+
+/**
+ * runNewEMI in the implementation of the EMI algorithm. Only the numerical
+ * attributes are used, the values of categorical attributes are ignored. The
+ * numerical attributes from sPos on are copied out and imputed by the numerical
+ * version of runNewEMI, and the imputed values copied back.
+ *
+ * @param data 2D array of values where NaN->missing, and contains the imputed values
+ * @param MissingMatrix 2D array where 1-> Missing, 0->non-missing
+ * @param MissingRecord 1D array where 1-> Missing in a record, 0->non-missing
+ * @param attrNType 1D array where 1-> numerical, 0->categorical
+ * @param sPos indicates the starting attr position of a record
+ * @param MissAvailable 0-> consider missing is missing, 1->consider missing is available
+ */
 
+public void runNewEMI(double [][]data, int [][]MissingMatrix,
+        int[] MissingRecord, int[] attrNType, int totalMissing, int sPos,int MissAvailable)
+{
+    int totalRecords=data.length;
+    int totalAttrs=data[0].length;
+    int numAttr=0;
     for(int c=sPos; c<totalAttrs;c++)
     {
-         avgImputation[c]=0; newAttrNType[c]=attrNType[c];attrAvgVal[c]=0.0; attrMean[c]=0.0;
+        if(attrNType[c]==1) numAttr++;
+    }
+    int []attrs=new int[numAttr];  //the numerical attributes from sPos on
+    for(int c=sPos, k=0; c<totalAttrs;c++)
+    {
+        if(attrNType[c]==1) attrs[k++]=c;
+    }
+    double [][]x=new double[totalRecords][numAttr];
+    long [][]missing=new long[totalRecords][(numAttr+63)>>>6];
+    for(int i=0; i<totalRecords;i++)
+    {
+        for(int k=0;k<numAttr;k++)
+        {
+            x[i][k]=data[i][attrs[k]];
+            if(MissingMatrix[i][attrs[k]]==1) missing[i][k>>>6]|=1L<<k;
+        }
+    }
+    runNumerical(x, missing, x, MissAvailable);
+    for(int i=0; i<totalRecords;i++)
+    {
+        for(int k=0;k<numAttr;k++)
+        {
+            if(MissingMatrix[i][attrs[k]]==1) data[i][attrs[k]]=x[i][k];
+        }
+    }
+    if(lastFit!=null) lastFit=lastFit.onAttributes(attrs, totalAttrs);
+}
+
+/**
+ * runNewEMI for numerical values only: the values of the numerical attributes
+ * of each record, with its missing values as a bit mask. The other versions of
+ * runNewEMI copy their numerical attributes out and call this one; a caller
+ * holding numbers and masks calls it directly, with no copy into a wider
+ * table. The values are copied into a buffer of the caller and imputed there.
+ *
+ * @param x values of the numerical attributes, a row per record, NaN->missing
+ * @param missing the mask of each record, bit j%64 of word j/64 set-> attribute j is missing
+ * @param imputed receives the values with the imputed ones, as large as x,
+ * may be x itself
+ */
+public void runNewEMI(double [][]x, long [][]missing, double [][]imputed)
+{
+    if(missing.length!=x.length || imputed.length!=x.length)
+        throw new IllegalArgumentException("x, missing and imputed must have the same no. of records");
+    runNumerical(x, missing, imputed, 0);
+}
+
+/*
+ * the numerical version of runNewEMI: avg imputation of the attributes with
+ * a single value, EM on the others if there are more records than them and
+ * avg imputation of all otherwise
+ */
+private void runNumerical(double [][]x, long [][]missing, double [][]data, int MissAvailable)
+{
+    int totalRecords=x.length;
+    lastFit=null;
+    lastIterations=0;
+    lastConverged=0;
+    if(totalRecords==0) return;
+    int totalAttrs=x[0].length;
+    for(int i=0; i<totalRecords;i++)
+    {
+        if(data[i]!=x[i]) System.arraycopy(x[i], 0, data[i], 0, totalAttrs);
     }
+    int []avgImputation=new int[totalAttrs];
+    int []attrNType=new int[totalAttrs];
+    Arrays.fill(attrNType, 1);
+    int[] newAttrNType=attrNType.clone();  //0->imputed by avg, not by EM
+    double[] attrAvgVal=new double[totalAttrs];
+    attrMean=new double[totalAttrs];
+
     calAttrMean(data,attrNType);
     //checking whether or not require avg imputation
     int noOfAvgImp=chkAvgImp(data,totalRecords,totalAttrs,
-            attrNType,sPos,avgImputation, newAttrNType,attrAvgVal);
-    //copy string data into an array of double type and cal avg
+            attrNType,0,avgImputation, newAttrNType,attrAvgVal);
     int numAttr=0;
-    for(int c=sPos; c<totalAttrs;c++)
+    for(int c=0; c<totalAttrs;c++)
     {
             if(newAttrNType[c]==1)
             {
@@ -122,21 +264,30 @@ public void runNewEMI(String [][]data, int [][]MissingMatrix,
     
     if(totalRecords>numAttr)
     {//EM imputation
-        emAlgorithmImplementation(data,totalRecords, totalAttrs,numAttr,
-             totalMissing, MissingMatrix, MissingRecord, newAttrNType, sPos,MissAvailable);
+        if(noOfThreads>1 && totalRecords>=PARALLEL_MIN_ROWS) pool=new ForkJoinPool(noOfThreads);
+        try
+        {
+            emAlgorithmImplementation(data, missing, numAttr, newAttrNType, MissAvailable);
+        }
+        finally
+        {
+            if(pool!=null) pool.shutdown();
+            pool=null;
+        }
+        if(noOfAvgImp>0) lastFit=null;
     }
     else
     {   //mean imputation
-         for(int c=sPos; c<totalAttrs;c++)
+         for(int c=0; c<totalAttrs;c++)
         {
             if(newAttrNType[c]==1)
             {
                 double total=0.0; int cnt=0;
                 for(int i=0; i<totalRecords;i++)
                 {
-                    if(isMissing(data[i][c])==0)
+                    if(!Double.isNaN(data[i][c]))
                     {
-                        total+=Double.parseDouble(data[i][c]);
+                        total+=data[i][c];
                         cnt++;
                     }
                 }
@@ -145,28 +296,22 @@ public void runNewEMI(String [][]data, int [][]MissingMatrix,
 
         }
 
-        noOfAvgImp=0;
-        for(int c=sPos; c<totalAttrs;c++)
-        {
-            if(attrNType[c]==1)
-            {
-                avgImputation[c]=1;noOfAvgImp++;
-            }
-        }
+        noOfAvgImp=totalAttrs;
+        Arrays.fill(avgImputation, 1);
      }
 
     //if avg imp require then imputes by avg value
     if(noOfAvgImp>0)
     {
-        for(int c=sPos; c<totalAttrs;c++)
+        for(int c=0; c<totalAttrs;c++)
         {
             if(avgImputation[c]==1)
             {
                for(int i=0; i<totalRecords;i++)
                 {
-                    if(MissingMatrix[i][c]==1)
+                    if(isMissing(missing[i],c)==1)
                     {
-                        data[i][c]=attrAvgVal[c]+"";
+                        data[i][c]=attrAvgVal[c];
                     }
                 }
 
@@ -174,12 +319,117 @@ public void runNewEMI(String [][]data, int [][]MissingMatrix,
 
         }
     }
+}
+
+/*
+ * returns 1 if attribute j is missing in a mask, 0 otherwise
+ */
+static int isMissing(long []mask, int j)
+{
+    return (int)(mask[j>>>6]>>>j)&1;
+}
+
+/**
+ * sets when EM stops, by default EMConvergence's defaults
+ *
+ * @param convergence the convergence test and iteration budget
+ */
+public void setConvergence(EMConvergence convergence)
+{
+    this.convergence=convergence;
+}
+
+/**
+ * sets the no. of threads EM runs on for large data sets. The E-step and the
+ * sums of the M-step are split in blocks of records, which are added up in an
+ * order that does not depend on the threads, so the result is the same with
+ * any no. of threads. 1 by default.
+ *
+ * @param threads no. of threads, 1->EM runs in the calling thread
+ */
+public void setNoOfThreads(int threads)
+{
+    noOfThreads=Math.max(1, threads);
+}
+
+/**
+ * sets the seed of the residuals added to the imputed values in the first EM
+ * iteration, so that runs are repeatable. Each EM run starts again from the
+ * seed. The residuals of a block of records are drawn from their own split of
+ * the generator, split in a fixed order, so they do not depend on the no. of
+ * threads. Without a seed every run draws a new one.
+ *
+ * @param seed the seed
+ */
+public void setSeed(long seed)
+{
+    this.seed=seed;
+    seeded=1;
+}
+
+/**
+ * sets whether the first EM iteration adds a random residual to the imputed
+ * values (the default) or imputes the conditional mean only, which makes EM
+ * deterministic and saves drawing the residuals
+ *
+ * @param meanOnly 1->conditional mean only, 0->with the residual
+ */
+public void setConditionalMean(int meanOnly)
+{
+    conditionalMean=meanOnly;
+}
+
+/**
+ * returns the no. of EM iterations of the last runNewEMI, 0 if EM did not run
+ *
+ * @return the no. of iterations
+ */
+public int getLastIterations()
+{
+    return lastIterations;
+}
 
+/**
+ * returns whether EM converged in the last runNewEMI
+ *
+ * @return 1->converged, 0->stopped at the max. no. of iterations, or EM did not run
+ */
+public int getLastConverged()
+{
+    return lastConverged;
+}
 
+/**
+ * returns the EM fit of the last runNewEMI, that is the mean vector and
+ * covariance matrix EM ended with. It is null if EM did not run, or if some
+ * numerical attributes were imputed by their average instead.
+ *
+ * @return the fit
+ */
+public EMFit getLastFit()
+{
+    return lastFit;
 }
+
+/**
+ * imputes a record by the fit of an earlier runNewEMI as that run imputed its
+ * own records: by the conditional expectation under the fit, plus a residual
+ * drawn from the generator of a run (see setSeed) if the run stopped after its
+ * first iteration, the one that adds residuals (see setConditionalMean)
+ *
+ * @param fit the fit
+ * @param values values of the record, the imputed values are written here
+ * @param missing the mask of the record, bit j%64 of word j/64 set-> attribute j is missing
+ */
+public void imputeByFit(EMFit fit, double []values, long []missing)
+{
+    fit.impute(values, missing,
+            (fit.getIterations()==1 && conditionalMean==0)?newRandom():null);
+}
+
 //calculate attr mean
 
-private void calAttrMean(String [][]data, int []attrType)
+private void calAttrMean(double [][]data, int []attrType)
 {
     int totalAttrs=data[0].length;
     int totalRecords=data.length;
@@ -190,9 +440,9 @@ private void calAttrMean(String [][]data, int []attrType)
                 double total=0.0; int cnt=0;
                 for(int i=0; i<totalRecords;i++)
                 {
-                    if(isMissing(data[i][c])==0)
+                    if(!Double.isNaN(data[i][c]))
                     {
-                        total+=Double.parseDouble(data[i][c]);
+                        total+=data[i][c];
                         cnt++;
                     }
                 }
@@ -251,14 +501,13 @@ private void calAttrMean(String [][]data, int []attrType)
     /*
      * check any attr require avg imputation
      */
-    private int chkAvgImp(String [][]dFile,int noOfRecords,int noOfAttrs,
+    private int chkAvgImp(double [][]dFile,int noOfRecords,int noOfAttrs,
             int []attrType,int sPos,int []avgImputation,
             int []NewAttrNType,double[] attrAvgVal )
     {
          
          int totAvg=0;
          double preVal, curVal;
-         String str="";
          for(int c=sPos;c<noOfAttrs;c++)
          {
              if (attrType[c]==1)
@@ -267,11 +516,10 @@ private void calAttrMean(String [][]data, int []attrType)
                 preVal=0.0;curVal=0.0;
                 for(int i=0; i<noOfRecords;i++)
                 {
-                    str=dFile[i][c];
-                    if (isMissing(str)==1)
+                    if (Double.isNaN(dFile[i][c]))
                         curVal=0.0;
                     else
-                        curVal=Double.parseDouble(str);
+                        curVal=dFile[i][c];
                     if(curVal!=preVal)
                     {
                         preVal=curVal;
@@ -292,13 +540,14 @@ private void calAttrMean(String [][]data, int []attrType)
          return totAvg;
     }
     /*
-     * Implementation of EM algorithm here for MVI
+     * Implementation of EM algorithm here for MVI, on the numerical values
+     * of runNumerical; the attributes with attrNType 1 take part in EM
      */
-    public void emAlgorithmImplementation(String [][]data,int noOfRecords,
-            int noOfAttrs,int noOfNumericalAttrs, int totalMissingValues,
-            int [][]MissingMatrix, int[] MissingRecord,
-            int []attrNType, int sPos,int MissAvailable)
+    private void emAlgorithmImplementation(double [][]data, long [][]missing,
+            int noOfNumericalAttrs, int []attrNType, int MissAvailable)
     {
+        int noOfRecords=data.length;
+        int noOfAttrs=attrNType.length;
         double [][]dataOriginal=new double[noOfRecords][noOfNumericalAttrs];
 
         double val;
@@ -315,18 +564,18 @@ private void calAttrMean(String [][]data, int []attrType)
             {
                 for(int i=0; i<noOfRecords;i++)
                 {
-                        if (MissingMatrix[i][j]==1)
+                        if (isMissing(missing[i],j)==1)
                         {
-                           if(isMissing(data[i][j])==1)
+                           if(Double.isNaN(data[i][j]))
                                val = 0.0;
                            else
-                               val=Double.parseDouble(data[i][j]);
+                               val=data[i][j];
                             nMissingMatrix[i][nc]=1;
                            
                         }
                         else
                         {
-                           val=Double.parseDouble(data[i][j]);
+                           val=data[i][j];
                            nMissingMatrix[i][nc]=0;
                         }
                         dataOriginal[i][nc]=val;
@@ -347,19 +596,21 @@ private void calAttrMean(String [][]data, int []attrType)
 
         }
 
+        //records missing the same attributes are imputed together
+        int [][]patterns=groupByMissingPattern(nMissingMatrix, nMissingRecord);
+
         double [][]dataCurrent=new double[noOfRecords][noOfNumericalAttrs];
         double []mu=new double[noOfNumericalAttrs];
         initilizeArray(mu);
         double []muPrevious=new double[noOfNumericalAttrs];
-        double [][]cov=new double[noOfNumericalAttrs][noOfNumericalAttrs];
-        double [][]covPrevious=new double[noOfNumericalAttrs][noOfNumericalAttrs];
+        SymmetricMatrix cov=new SymmetricMatrix(noOfNumericalAttrs);
+        SymmetricMatrix covPrevious;
            
-       MatrixCalculation mxCal=new MatrixCalculation();
+       //the sums of the complete records are taken once
+       EMStatistics stats=new EMStatistics(dataOriginal, nMissingMatrix, nMissingRecord, MissAvailable, pool);
 
        int T=0;
-       int meanError;
-       int covError;
-       int loopTerminator =generateLoopTerminator();
+       int converged=0;
        //copy of original data for updating
        for(int i=0; i<noOfRecords;i++)
        {
@@ -373,38 +624,30 @@ private void calAttrMean(String [][]data, int []attrType)
            for(int i=0; i<noOfNumericalAttrs;i++)
            {
                muPrevious[i]=mu[i];
-               for(int j=0; j<noOfNumericalAttrs;j++)
-               {
-                    covPrevious[i][j]=cov[i][j];
-               }
             }
+           covPrevious=cov.copy();
            
-           computeMean(dataCurrent, nMissingMatrix, MissAvailable, mu);
-           mxCal.computeCovariance(dataCurrent, noOfRecords, noOfNumericalAttrs,  mu,cov);
+           stats.compute(dataCurrent, mu, cov);
 
-           for(int i=0;i<noOfRecords;i++)
-           {
-               if(nMissingRecord[i]==1)
-               {
-                emImputation(dataCurrent,i,nMissingMatrix,T,mu,cov,noOfNumericalAttrs);
-               }
-           }
+           //the residuals are only added in the first iteration
+           imputeGroups(dataCurrent,patterns,nMissingMatrix,mu,cov,noOfNumericalAttrs,
+                   (T==0 && conditionalMean==0)?newRandom():null);
 
-           //mean error calculation
-           meanError= calMeanError(muPrevious,mu);
-           //covariance matrix (det) error calculation
-           covError=calCovError(covPrevious,cov);
+           converged=convergence.hasConverged(muPrevious,mu,covPrevious,cov)?1:0;
            T++;
-           if(T>loopTerminator)break;
-//           if(T>5)break;
-//           if(T%1000==0)
-//               System.out.println("EM iteration: "+T);
-
-       }while(meanError==1 || covError==1);
+       }while(converged==0 && T<convergence.getMaxIterations());
+       lastIterations=T;
+       lastConverged=converged;
+       if(converged==0)
+       {
+           Logger.getLogger(mviNewEMI.class.getName()).log(Level.FINE,
+                   "EM stopped after "+T+" iterations without converging");
+       }
+       lastFit=new EMFit(attrNType, mu, cov, attrMean, T, converged);
 
        /*
         * Imputation done!
-        * copying data from double array to string array
+        * copying the imputed values back to the data
         */
         //writing dataset to the file oFile after imputation
        nc=0;
@@ -414,15 +657,12 @@ private void calAttrMean(String [][]data, int []attrType)
            {
                for(int i=0; i<noOfRecords;i++)
                {
-                   if(MissingMatrix[i][c]==1)
+                   if(isMissing(missing[i],c)==1)
                    {
-                       if(dataCurrent[i][nc]!=Double.NaN)
-                       {
-                            data[i][c]= dataCurrent[i][nc]+"";
-                       }
-                       if(isMissing(data[i][c])==1)
+                       data[i][c]= dataCurrent[i][nc];
+                       if(Double.isNaN(data[i][c]))
                        {
-                            data[i][c]=attrMean[c]+"";
+                            data[i][c]=attrMean[c];
                        }
                    }
                }
@@ -437,294 +677,206 @@ private void calAttrMean(String [][]data, int []attrType)
     public void emImputation(double [][]dataElement,int msRow,int [][]MissingMatrix,
             int T, double[]mu,double [][]cov,
             int noOfNumericalAttrs)
+    {
+        emImputation(dataElement, new int[]{msRow}, MissingMatrix, mu,
+                new SymmetricMatrix(cov, noOfNumericalAttrs), noOfNumericalAttrs,
+                (T==0 && conditionalMean==0)?newRandom():null);
+    }
+
+    /*
+     * returns the generator of the residuals of an EM run
+     */
+    private SplittableRandom newRandom()
+    {
+        return seeded==1?new SplittableRandom(seed):new SplittableRandom();
+    }
+
+    /*
+     * imputes the records of a group missing the same attributes, as the
+     * single record version does for each of them. The covariance of the
+     * available attributes is factored once for the group (see
+     * EMFit.regression), and the conditional means of all records of the
+     * group are found by one matrix product. cov_aa is a view of the
+     * covariance, not a copy. With a generator, a residual C*z is added to
+     * the values of each record, where z is standard normal and
+     * C=cov_ma*inv(cov_aa)*cov_am.
+     */
+    public void emImputation(double [][]dataElement,int []rows,int [][]MissingMatrix,
+            double[]mu,SymmetricMatrix cov,int noOfNumericalAttrs,SplittableRandom residual)
     {
        int r,c,k,j;
+       int []pattern=MissingMatrix[rows[0]];
        int m=0;
-       
-       for(j=0; j<noOfNumericalAttrs;j++)
+       for(c=0;c<noOfNumericalAttrs;c++)
        {
-           if(MissingMatrix[msRow][j]==1)m++;
-        }
-
+           if(pattern[c]==1)m++;
+       }
        int a=noOfNumericalAttrs-m;
-       double []X_a=new double[a];
-       double []X_m=new double[m];
-       double []Mu_a=new double[a];
-       double []Mu_m=new double[m];
-       double [][]cov_aa=new double[a][a];
-       double [][]cov_mm=new double[m][m];
-       double [][]cov_am=new double[a][m];
-//       double [][]B=new double[a][m];
-      
-       Matrix matX_a,matX_m, matMu_a,matMu_m,matcov_aa,matcov_mm,matcov_am,matcov_ma;
-       Matrix matinvOfcov_aa,matB,  matC,mate;
-       // finding available data elements for the record msRow
-       // finding the mean vector except attribute msCol
-       k=0;
-       for(c=0;c<noOfNumericalAttrs;c++)
+       int []attrA=new int[a];  //the available attributes
+       int []attrM=new int[m];  //the missing attributes
+       for(c=0,k=0,j=0;c<noOfNumericalAttrs;c++)
        {
-           if(MissingMatrix[msRow][c]==0)
-           {
-               X_a[k]=dataElement[msRow][c];
-               Mu_a[k]=mu[c];
-               k++;
-           }
+           if(pattern[c]==0) attrA[k++]=c;
+           else attrM[j++]=c;
        }
+       double []Mu_m=new double[m];
+       for(k=0;k<m;k++) Mu_m[k]=mu[attrM[k]];
 
-       MatrixCalculation mxCal=new MatrixCalculation();
-       //converting the data array to matrix
-       matX_a= mxCal.oneDArrayToMatrix(X_a);
-//       matX_a.print(4,2);
-       matMu_a= mxCal.oneDArrayToMatrix(Mu_a);
-//       matMu_a.print(4,2);
-       //initialising missing cell
-        for(c=0,k=0;c<noOfNumericalAttrs;c++)
-        {
-            if(MissingMatrix[msRow][c]==1)
-            {
-                X_m[k]=dataElement[msRow][c];
-                Mu_m[k]=mu[c];//mean value of missing attribute
-                if (k<m)k++;
-            }
-        }
-       
-       matX_m= mxCal.oneDArrayToMatrix(X_m);//convert to matrix
-//       matX_m.print(4,2);
-       matMu_m= mxCal.oneDArrayToMatrix(Mu_m);//convert to matrix
-//       matMu_m.print(4,2);
-
+       double [][]X_m=null;  //the imputed values of each record, null->the mean
        //if do not have any availble values then simple add the mean
        if(a>0)
        {
-           //finding covariance only for the attributes having available values
-           k=0;
-           for(r=0;r<noOfNumericalAttrs;r++)
+           try
            {
-               j=0;
-               if(MissingMatrix[msRow][r]==0)
+               Matrix matcov_am=cov.getMatrix(attrA, attrM);
+               Matrix matB=EMFit.regression(cov.view(attrA), matcov_am);
+               if(matB!=null)
                {
-                   for(c=0;c<noOfNumericalAttrs;c++)
+                   //available values less their mean, a row per record
+                   double [][]Xa_Minus_Mua=new double[rows.length][a];
+                   for(int i=0;i<rows.length;i++)
                    {
-                       if(MissingMatrix[msRow][c]==0)
-                       {
-                           cov_aa[k][j]=cov[r][c];
-                           j++;
-                       }
+                       for(k=0;k<a;k++)
+                           Xa_Minus_Mua[i][k]=dataElement[rows[i]][attrA[k]]-mu[attrA[k]];
                    }
-                   k++;
-               }
-            }
-//           int covMN=k;
-//           int covMM=j;
-           matcov_aa= new Matrix(cov_aa);//convert to matrix of available cov
-          double tt=matcov_aa.det();
-//          System.out.println(tt);
-          if(tt!=0)
-          {
-    
-          k=0;
-           for(r=0;r<noOfNumericalAttrs;r++)
-           {
-               j=0;
-               if(MissingMatrix[msRow][r]==1)
-               {
-                   for(c=0;c<noOfNumericalAttrs;c++)
+                   Matrix matX_m=new Matrix(Xa_Minus_Mua).times(matB);
+                   X_m=matX_m.getArray();
+                   for(int i=0;i<rows.length;i++)
                    {
-                       if(MissingMatrix[msRow][c]==1)
-                       {
-                           cov_mm[k][j]=cov[r][c];
-                           j++;
-                       }
+                       for(k=0;k<m;k++) X_m[i][k]+=Mu_m[k];
                    }
-                   k++;
-               }
-            }
-
-
-           matcov_mm=new Matrix(cov_mm);//convert to matrix
-    //       matcov_mm.print(4,2);
-           //finding cross covariance for avaliable and missing
-           k=0;
-           for(r=0;r<noOfNumericalAttrs;r++)
-           {
-               j=0;
-               if(MissingMatrix[msRow][r]==0)
-               {
-                   for(c=0;c<noOfNumericalAttrs;c++)
+                   ///following the calculation of the residual e=C*z (1xPm), for first iteration
+                   // with mean zero, z standard normal
+                   if(residual!=null)
                    {
-                       if(MissingMatrix[msRow][c]==1)
+                       double [][]C=matcov_am.transpose().times(matB).getArray();
+                       double []z=new double[m];
+                       for(int i=0;i<rows.length;i++)
                        {
-                           cov_am[k][j]=cov[r][c];
-                           j++;
+                           for(k=0;k<m;k++) z[k]=nextGaussian(residual);
+                           for(k=0;k<m;k++)
+                           {
+                               double e=0;
+                               for(j=0;j<m;j++) e+=C[k][j]*z[j];
+                               X_m[i][k]+=e;
+                           }
                        }
                    }
-                   k++;
                }
-            }
-          matcov_am= new Matrix(cov_am);//convert to matrix of cross cov of available & missing
-    //      matcov_am.print(4,2);
-          matcov_ma=matcov_am.transpose(); //create matrix of cross cov for missing & available
-    //      matcov_ma.print(4,2);
-
-
-          //implementing EM equation
-
-          try
-          {
-          matinvOfcov_aa=matcov_aa.inverse();
-//            matinvOfcov_aa=mxCal.pesudoInverse(matcov_aa, covMN, covMM);
-
-    //      matinvOfcov_aa.print(4,2);
-          matB=matinvOfcov_aa.times(matcov_am);
-    //      matB.print(4,2);
-    //      mattransposeOfB=matB.transpose();
-          matC=matcov_ma.times(matinvOfcov_aa.times(matcov_am));
-    //      matC.print(4,2);
-
-          ////
-          Matrix Xa_Minus_Mua=matX_a.minus(matMu_a);
-          Matrix Xa_Minus_Mua_TimesB=Xa_Minus_Mua.times(matB);
-          matX_m=matMu_m.plus(Xa_Minus_Mua_TimesB);
-
-          ///following the calculation of the residual matrix e (1xPm), for first iteration
-          // with mean zero and unknown covariance matrix C (Pm x Pm)
-          if(T==0)
-          {
-            mate = generateResidualMatrix(X_m,matMu_m, matcov_mm,matC, msRow, m);
-            matX_m=matX_m.plus(mate);
-            }
-              }
-          catch(Exception ex)
-          {
-            matX_m=matMu_m;
-          }
            }
-         else
-          {
-              matX_m=matMu_m;
-            }
-        }
-       else
+           catch(Exception ex)
+           {
+               X_m=null;
+           }
+       }
+       // update dataset
+       for(int i=0;i<rows.length;i++)
+       {
+           for(k=0;k<m;k++)
+           {
+               dataElement[rows[i]][attrM[k]]=X_m==null?Mu_m[k]:X_m[i][k];
+           }
+       }
+    }
+
+    /*
+     * runs the E-step of the groups of records missing the same attributes, a
+     * block of up to EMStatistics.BLOCK_ROWS records of a group at a time, on
+     * the pool if there is one. A record is imputed the same whichever block
+     * it is in. With a generator, each block draws its residuals from its own
+     * split of it, split here in the order of the blocks.
+     */
+    private void imputeGroups(final double [][]dataElement,int [][]patterns,
+            final int [][]MissingMatrix,final double[]mu,final SymmetricMatrix cov,
+            final int noOfNumericalAttrs,SplittableRandom residual)
+    {
+        List<Callable<Object>> tasks=new ArrayList<Callable<Object>>();
+        for(int g=0;g<patterns.length;g++)
         {
-           matX_m=matMu_m;
+            for(int lo=0;lo<patterns[g].length;lo+=EMStatistics.BLOCK_ROWS)
+            {
+                int hi=Math.min(patterns[g].length, lo+EMStatistics.BLOCK_ROWS);
+                final int []rows=(lo==0 && hi==patterns[g].length)?patterns[g]:
+                        Arrays.copyOfRange(patterns[g], lo, hi);
+                final SplittableRandom blockResidual=residual==null?null:residual.split();
+                if(pool==null)
+                {
+                    emImputation(dataElement,rows,MissingMatrix,mu,cov,noOfNumericalAttrs,blockResidual);
+                    continue;
+                }
+                tasks.add(new Callable<Object>() {
+                    public Object call()
+                    {
+                        emImputation(dataElement,rows,MissingMatrix,mu,cov,noOfNumericalAttrs,blockResidual);
+                        return null;
+                    }
+                });
+            }
         }
-      //result
-      mxCal.matrixTo1DArray(matX_m,X_m,m);
-      // update dataset
-       for(c=0,k=0;c<noOfNumericalAttrs;c++)
+        if(pool==null) return;
+        for(Future<Object> f: pool.invokeAll(tasks))
         {
-            if(MissingMatrix[msRow][c]==1)
+            try
             {
-                dataElement[msRow][c]=X_m[k];
-                if(k<m)k++;
+                f.get();
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+            catch(ExecutionException ex)
+            {
+                throw new RuntimeException(ex.getCause());
             }
         }
-      
     }
 
-/* the following method generates perturbed dataset
- @param matX_m matrix of a recored of missing attributes
- @param matMu_m mean matrix of missing attributes
- @param matCov_m covariance matrix of missing attributes
- @param pertVar covariance matrix of the data set
- @param recNum record number having missiong values
- @param m no. of missing values
- @return a residual matrix with mean zero and unknown covariance
- */
-
-    public Matrix  generateResidualMatrix(double []matX_m,Matrix matMu_m,
-            Matrix matCov_m,Matrix pertVar,int recNum,int m)
+    /*
+     * returns the records missing some value grouped by the attributes they
+     * miss, each group in ascending order and the groups in the order of
+     * their first record
+     */
+    static int[][] groupByMissingPattern(int [][]MissingMatrix, int []MissingRecord)
     {
-            Matrix output, cholPertVariance,pertVariance;
-            Matrix mean, randomMatrix;
-            CholeskyDecomposition cholesky;
-            pertVariance=pertVar;
-            cholesky = pertVariance.chol();
-            cholPertVariance = cholesky.getL();
-
-            mean = calculateMeanZero(matX_m,matMu_m,matCov_m,recNum,m);//return zero mean vector
-           //mean.print(5,2);
-            randomMatrix = generateRandomVariates(m);
-           // output = [m1 m2 m3] + (h_s)*z
-           // where, z = random matrix;
-           //        hs = cholesky decomposition of the cov matrix;
-           //        [m1 m2 m3] = is the mean vector;
-           // output = mean.transpose().plus(randomMatrix.times(cholPertVariance));
-           // The following line complies with the sequence of multiplications
-           // advised in the original equaltion of GADP method
-            output = mean.plus(pertVar.times(randomMatrix.transpose()));
-            output = output.transpose(); // it produces a matrix of dim.(1x6)
-//            output.print(5,2);
-            return output;
-    }// end of generateResidualMatrix()
-
-// this method returns a vector of expected values for a perturbed record
-    // given the original record
-    public Matrix calculateMeanZero(double []X_m,Matrix matMu_m,Matrix matCov_m,int recNum,int m){
-        Matrix c, mean, result,covXX,covYX,covYY;
-        MatrixCalculation mxCal=new MatrixCalculation();
-
-        double [] c_rec = new double[m];
-        for (int i=0;i<m;i++)
-            c_rec[i]=0.0;//X_m[i];
-            c = mxCal.oneDArrayToMatrix(c_rec);
-//        covXX =  matCov_m;
-//        covYX = covXX.times(.35);
-//        covYY = covXX;
-//        result = c.minus(matMu_m).transpose();
-//        result = covYX.times(covXX.inverse().times(result));
-//        mean = matMu_m.transpose().plus(result);
-        return c.transpose();//mean;
-    }
-
-    // following method generates a vector of random variates
-    // from a standard normal distribution
-    public Matrix generateRandomVariates(int numAttr){
-        Matrix rndMat;
-        double[] randVariates = new double[numAttr];
-        for(int i=0; i<numAttr; i++)
-           randVariates[i] = 0;
-        Random rand = new Random();
-        for(int j=0; j<numAttr; j++){
-           // randVariates[j] = rand.nextNormal();
-           randVariates[j] = rand.nextGaussian();
+        Map<String,List<Integer>> groups=new LinkedHashMap<String,List<Integer>>();
+        for(int i=0;i<MissingRecord.length;i++)
+        {
+            if(MissingRecord[i]!=1) continue;
+            String key=Arrays.toString(MissingMatrix[i]);
+            List<Integer> group=groups.get(key);
+            if(group==null)
+            {
+                group=new ArrayList<Integer>();
+                groups.put(key, group);
+            }
+            group.add(i);
+        }
+        int [][]rows=new int[groups.size()][];
+        int g=0;
+        for(List<Integer> group: groups.values())
+        {
+            rows[g]=new int[group.size()];
+            for(int i=0;i<rows[g].length;i++) rows[g][i]=group.get(i);
+            g++;
         }
-        MatrixCalculation mxCal=new MatrixCalculation();
-       //converting the data array to matrix
-        rndMat =  mxCal.oneDArrayToMatrix(randVariates);
-        // The following print outs are to see the dimensions of the
-        // rndMat matrix:
-        // System.out.println("Printing Z vector: ");
-       return rndMat;
+        return rows;
     }
 
-
     /*
-     * Calculate mean based on the available values.
+     * returns a standard normal variate, by the polar method as
+     * java.util.Random.nextGaussian does, without keeping the second variate
      */
-    private void computeMean(double[][]DataElement, int [][]MissingMatrix,int msFlag,double []mu )
+    static double nextGaussian(SplittableRandom rnd)
     {
-        int totRec;
-        int numAttr=DataElement[0].length;
-        int numRecords=DataElement.length;
-        for(int i=0; i<numAttr; i++)
-            mu[i] = 0;
-        double sum=0;
-        for(int i=0; i<numAttr; i++)
+        double v1, v2, s;
+        do
         {
-           sum = 0.0;totRec=0;
-           for(int j = 0; j<numRecords; j++)
-           {
-                   
-                   if(MissingMatrix[j][i]==0 ||msFlag==1) //0->available, 1->Missing
-                   {
-                       totRec++;//counting available rows of an attribute i
-                       sum += DataElement[j][i];
-                   }
-           }
-          if(totRec>0)     mu[i] = sum/(double)totRec;
-        }
-
+            v1=2*rnd.nextDouble()-1;
+            v2=2*rnd.nextDouble()-1;
+            s=v1*v1+v2*v2;
+        }while(s>=1 || s==0);
+        return v1*StrictMath.sqrt(-2*StrictMath.log(s)/s);
     }
 
     //check whether an attribute has found in the array msCol.
@@ -741,71 +893,6 @@ public int chkAttrIsMiss(int sCol,int []msCol,int sPos,int ePos)
         return flag;
     }
 
-    //claculate the mean error and
-    //check whether a missing attribute has conversed or not.
-    public int calMeanError(double []preMu,double []curMu)
-    {
-       
-        int isError=1, tA=0;
-        double diff=0.0;
-        double cuT=0.0,cyAvg=0.0;
-        double preT=0.0,preAvg=0.0;
-        tA=preMu.length;
-        for(int i=0;i<tA;i++)
-        {
-            cuT=cuT+curMu[i];
-            preT=preT+preMu[i];
-        }
-        if(tA>0)
-        {
-            cyAvg= cuT/tA;
-            preAvg= preT/tA;
-        }
-
-        diff=Math.abs(preAvg-cyAvg);
-
-         if(diff<0.0000000001)
-         {
-            isError=0;
-         }
-
-        
-        return isError;
-    }
-
-     //claculate the covariance error and
-    //check whether a missing attribute has conversed or not.
-    public int calCovError(double [][]preCov,double [][]curCov)
-    {
-
-        int isError=1;
-        double diff=0.0;
-        double preDet=0.0;
-        double curDet=0.0;
-        try
-        {
-            Matrix preCov_mat=new Matrix(preCov);
-            Matrix curCov_mat=new Matrix(curCov);
-            preDet=preCov_mat.det();
-            curDet=curCov_mat.det();
-            diff=Math.abs(preDet-curDet);
-            if(diff<0.0000000001)
-             {
-                isError=0;
-             }
-        }
-        catch(Exception e)
-        {
-         }
-        return isError;
-    }
-    //following method will generate a random number between 1000 and 32767
-    //In case of INFINITE loop, it will be used as loop terminator
-    public int generateLoopTerminator()
-    {
-        Random rand = new Random();
-        return (1000+rand.nextInt(31767));
-    }
     //following method will initialize an array.(data type double)  
      public void initilizeArray(double []curArr)
     {